@@ -0,0 +1,93 @@
+package com.twitter.university.webauthz;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory, lock-free count-min sketch for estimating how often an item
+ * has been seen.
+ *
+ * The sketch is made of <code>depth</code> rows of <code>width</code> atomic
+ * counters. Every {@link #add(Object)} increments exactly one counter per row,
+ * so the cost of an update is bounded by <code>depth</code> and independent
+ * of the number of distinct items. Estimates never under-count; with
+ * probability <code>1 - 2^-depth</code> they over-count by at most
+ * <code>2N/width</code>, where N is the total number of updates.
+ *
+ * Each row is indexed from a 64-bit hash of the item, so that items only
+ * collide in every row if their hashes do. {@link Long}s are hashed by their
+ * full value and {@link String}s by all of their chars; any other item falls
+ * back to its 32-bit {@link Object#hashCode()}.
+ */
+public final class CountMinSketch {
+
+    private final int depth;
+    private final int width;
+    private final AtomicLongArray counters;
+
+    public CountMinSketch(int depth, int width) {
+        if (depth <= 0) {
+            throw new IllegalArgumentException("Depth must be positive: "
+                    + depth);
+        }
+        if (width <= 0) {
+            throw new IllegalArgumentException("Width must be positive: "
+                    + width);
+        }
+        this.depth = depth;
+        this.width = width;
+        this.counters = new AtomicLongArray(depth * width);
+    }
+
+    private static long hash(Object item) {
+        if (item instanceof Long) {
+            return (Long) item;
+        } else if (item instanceof String) {
+            return Util.hash64((String) item);
+        }
+        return item.hashCode();
+    }
+
+    private int index(int row, long hash) {
+        long h = Util.mix(hash + (row + 1) * 0x9e3779b97f4a7c15L);
+        return row * width + (int) ((h >>> 1) % width);
+    }
+
+    public void add(Object item) {
+        add(item, 1);
+    }
+
+    public void add(Object item, long count) {
+        final long hash = hash(item);
+        for (int row = 0; row < depth; row++) {
+            counters.addAndGet(index(row, hash), count);
+        }
+    }
+
+    public long estimate(Object item) {
+        final long hash = hash(item);
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, counters.get(index(row, hash)));
+        }
+        return min;
+    }
+
+    public void clear() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public String toString() {
+        return "CountMinSketch [depth=" + depth + ", width=" + width + "]";
+    }
+}
@@ -0,0 +1,85 @@
+package com.twitter.university.webauthz;
+
+import java.util.List;
+
+/**
+ * Optional, fixed-memory instrumentation that tracks which base paths and
+ * users dominate decode traffic.
+ *
+ * Every {@link #record(WebAuthz)} feeds the base path and user id of a decoded
+ * token into a {@link CountMinSketch} (frequency estimates for any key) and a
+ * {@link SpaceSaving} sketch (the current top-k keys). Both are updated
+ * without global locks and at a cost that is independent of the number of
+ * distinct keys, and both can be queried at any time while updates are in
+ * progress. Tokens without a user id (zero) are not counted against users.
+ *
+ * <pre>
+ * WebAuthz auth = heavyHitters.record(WebAuthz.decode(token, key));
+ * </pre>
+ */
+public final class HeavyHitters {
+
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final int DEFAULT_DEPTH = 4;
+    private static final int DEFAULT_WIDTH = 1 << 14;
+
+    private final SpaceSaving<String> topBasePaths;
+    private final SpaceSaving<Long> topUserIds;
+    private final CountMinSketch basePathFrequencies;
+    private final CountMinSketch userIdFrequencies;
+
+    public HeavyHitters() {
+        this(DEFAULT_CAPACITY, DEFAULT_DEPTH, DEFAULT_WIDTH);
+    }
+
+    /**
+     * @param capacity
+     *            the number of keys monitored by each top-k stripe
+     * @param depth
+     *            the number of rows in each count-min sketch
+     * @param width
+     *            the number of counters per row in each count-min sketch
+     */
+    public HeavyHitters(int capacity, int depth, int width) {
+        this.topBasePaths = new SpaceSaving<>(capacity);
+        this.topUserIds = new SpaceSaving<>(capacity);
+        this.basePathFrequencies = new CountMinSketch(depth, width);
+        this.userIdFrequencies = new CountMinSketch(depth, width);
+    }
+
+    public WebAuthz record(WebAuthz auth) {
+        final String basePath = auth.getBasePath();
+        topBasePaths.offer(basePath);
+        basePathFrequencies.add(basePath);
+        final long userId = auth.getUserId();
+        if (userId != 0) {
+            final Long key = userId;
+            topUserIds.offer(key);
+            userIdFrequencies.add(key);
+        }
+        return auth;
+    }
+
+    public List<SpaceSaving.Entry<String>> getTopBasePaths(int n) {
+        return topBasePaths.top(n);
+    }
+
+    public List<SpaceSaving.Entry<Long>> getTopUserIds(int n) {
+        return topUserIds.top(n);
+    }
+
+    public long estimateBasePath(String basePath) {
+        return basePathFrequencies.estimate(basePath);
+    }
+
+    public long estimateUserId(long userId) {
+        return userIdFrequencies.estimate(userId);
+    }
+
+    public void clear() {
+        topBasePaths.clear();
+        topUserIds.clear();
+        basePathFrequencies.clear();
+        userIdFrequencies.clear();
+    }
+}
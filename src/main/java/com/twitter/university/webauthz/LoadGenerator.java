@@ -0,0 +1,510 @@
+package com.twitter.university.webauthz;
+
+import static com.sun.management.GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.crypto.Mac;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Load and soak harness for token verification.
+ *
+ * Generates pools of valid (v1 and v2), expired, badly signed and malformed
+ * tokens, then verifies them from a number of threads for a fixed duration,
+ * picking the kind of token by the configured mix and the token within its
+ * pool by a Zipfian distribution (so some tokens are reused a lot, as with
+ * real clients). After a warm-up it reports throughput, latency percentiles,
+ * allocation rate, GC activity and GC pause durations, which makes it
+ * possible to compare configurations on the same hardware.
+ *
+ * <pre>
+ * java -cp webauthz.jar com.twitter.university.webauthz.LoadGenerator \
+ *     --threads=8 --duration=60 --interner=true
+ * </pre>
+ */
+public final class LoadGenerator {
+
+    enum Kind {
+        VALID, V1, EXPIRED, BADSIG, MALFORMED
+    }
+
+    enum Outcome {
+        ACCEPTED, EXPIRED, REJECTED
+    }
+
+    private static final String USAGE = "USAGE: LoadGenerator [--threads=N]"
+            + " [--duration=SECONDS] [--warmup=SECONDS] [--tokens=N]"
+            + " [--zipf=EXPONENT]"
+            + " [--mix=valid:70,v1:10,expired:10,badsig:5,malformed:5]"
+            + " [--interner=true|false] [--heavy-hitters=true|false]"
+            + " [--single-flight=true|false]";
+
+    private static final Key KEY = WebAuthz.generateKey("load-generator-key");
+    private static final Key OTHER_KEY = WebAuthz
+            .generateKey("some-other-key");
+
+    private final int threads;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final Kind[] kinds;
+    private final double[] kindCdf;
+    private final String[][] pools;
+    private final double[] zipfCdf;
+    private final StringInterner interner;
+    private final HeavyHitters heavyHitters;
+    private final SingleFlight<String, WebAuthz> singleFlight;
+
+    LoadGenerator(Map<String, String> options) {
+        this.threads = Integer.parseInt(option(options, "threads", String
+                .valueOf(Runtime.getRuntime().availableProcessors())));
+        this.durationNanos = Long.parseLong(option(options, "duration",
+                "30")) * 1000000000L;
+        this.warmupNanos = Long.parseLong(option(options, "warmup", "10"))
+                * 1000000000L;
+        final int tokens = Integer.parseInt(option(options, "tokens", "10000"));
+        final double zipf = Double.parseDouble(option(options, "zipf", "1.0"));
+        this.interner = Boolean.parseBoolean(option(options, "interner",
+                "false")) ? new StringInterner() : null;
+        this.heavyHitters = Boolean.parseBoolean(option(options,
+                "heavy-hitters", "false")) ? new HeavyHitters() : null;
+        this.singleFlight = Boolean.parseBoolean(option(options,
+                "single-flight", "false"))
+                ? new SingleFlight<String, WebAuthz>() : null;
+
+        final Map<Kind, Double> mix = parseMix(option(options, "mix",
+                "valid:70,v1:10,expired:10,badsig:5,malformed:5"));
+        this.kinds = mix.keySet().toArray(new Kind[mix.size()]);
+        this.kindCdf = new double[kinds.length];
+        double total = 0;
+        for (int i = 0; i < kinds.length; i++) {
+            total += mix.get(kinds[i]);
+            kindCdf[i] = total;
+        }
+        for (int i = 0; i < kinds.length; i++) {
+            kindCdf[i] /= total;
+        }
+
+        final Random random = new Random(42);
+        this.pools = new String[Kind.values().length][];
+        for (Kind kind : kinds) {
+            String[] pool = new String[tokens];
+            for (int i = 0; i < tokens; i++) {
+                pool[i] = generate(kind, i, random);
+            }
+            pools[kind.ordinal()] = pool;
+        }
+        this.zipfCdf = zipfCdf(tokens, zipf);
+    }
+
+    private static String option(Map<String, String> options, String name,
+            String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    static Map<String, String> parseOptions(String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Bad option: " + arg);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return options;
+    }
+
+    static Map<Kind, Double> parseMix(String mix) {
+        final Map<Kind, Double> result = new HashMap<>();
+        for (String part : mix.split(",")) {
+            String[] kv = part.split(":");
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Bad mix: " + mix);
+            }
+            double weight = Double.parseDouble(kv[1]);
+            if (weight < 0) {
+                throw new IllegalArgumentException("Bad mix: " + mix);
+            } else if (weight > 0) {
+                result.put(Kind.valueOf(kv[0].toUpperCase()), weight);
+            }
+        }
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException("Empty mix: " + mix);
+        }
+        return result;
+    }
+
+    static double[] zipfCdf(int n, double exponent) {
+        final double[] cdf = new double[n];
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            total += 1 / Math.pow(i + 1, exponent);
+            cdf[i] = total;
+        }
+        for (int i = 0; i < n; i++) {
+            cdf[i] /= total;
+        }
+        return cdf;
+    }
+
+    private static int sample(double[] cdf, double r) {
+        int i = Arrays.binarySearch(cdf, r);
+        return Math.min(i < 0 ? -i - 1 : i, cdf.length - 1);
+    }
+
+    private static WebAuthz generateAuthz(int i, long expiry) {
+        return new WebAuthzBuilder(Access.fromByte((byte) (i % 4)), expiry)
+                .withBasePath("/class/" + (i % 1000) + "/files/")
+                .withDescription("Class " + (i % 1000))
+                .withQuota(i % 3 == 0 ? 0 : 1024L * 1024 * (i % 100))
+                .witUserId(i)
+                .withUserDescription(i % 2 == 0 ? null : "User " + i).build();
+    }
+
+    private static String sign(int version, byte[] payload, Key key)
+            throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(key);
+        byte[] signature = mac.doFinal(payload);
+        byte[] data = new byte[1 + signature.length + payload.length];
+        data[0] = (byte) version;
+        System.arraycopy(signature, 0, data, 1, signature.length);
+        System.arraycopy(payload, 0, data, 1 + signature.length,
+                payload.length);
+        return Util.urlSafeBase64Encode(data);
+    }
+
+    private static byte[] v1Payload(WebAuthz auth, Random random)
+            throws IOException {
+        ByteArrayOutputStream payloadOut = new ByteArrayOutputStream(256);
+        byte[] nonce = new byte[8];
+        random.nextBytes(nonce);
+        payloadOut.write(nonce);
+        DataOutputStream out = new DataOutputStream(payloadOut);
+        out.writeInt(Access.toByte(auth.getAccess()));
+        out.writeLong(auth.getExpiry());
+        out.writeUTF(auth.getBasePath());
+        out.writeUTF(Util.emptyOnNull(auth.getDescription()));
+        Util.writeZeroOrLong(auth.getQuota(), out, 5);
+        out.writeLong(auth.getUserId());
+        out.writeUTF(Util.emptyOnNull(auth.getUserDescription()));
+        return payloadOut.toByteArray();
+    }
+
+    static String generate(Kind kind, int i, Random random) {
+        final long now = System.currentTimeMillis();
+        try {
+            switch (kind) {
+            case VALID:
+                return generateAuthz(i, i % 5 == 0 ? 0 : now + 24 * 60 * 60
+                        * 1000L).encode(KEY);
+            case V1:
+                return sign(1, v1Payload(generateAuthz(i, now + 24 * 60 * 60
+                        * 1000L), random), KEY);
+            case EXPIRED:
+                return generateAuthz(i, now - 1000L * (i + 1)).encode(KEY);
+            case BADSIG:
+                return generateAuthz(i, now + 60 * 60 * 1000L).encode(
+                        OTHER_KEY);
+            case MALFORMED:
+                byte[] payload = v1Payload(generateAuthz(i, now), random);
+                switch (i % 3) {
+                case 0:
+                    // correctly signed, but truncated in the middle of a field
+                    return sign(1, Arrays.copyOf(payload, 8 + 4 + 8 + 1), KEY);
+                case 1:
+                    return sign(99, payload, KEY);
+                default:
+                    return "not-a-token-" + i;
+                }
+            default:
+                throw new AssertionError(kind);
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            throw new RuntimeException("Failed to generate " + kind
+                    + " token", e);
+        }
+    }
+
+    private WebAuthz decode(final String token) {
+        if (singleFlight == null) {
+            return WebAuthz.decode(token, KEY, interner);
+        }
+        return singleFlight.execute(token, new Callable<WebAuthz>() {
+            @Override
+            public WebAuthz call() {
+                return WebAuthz.decode(token, KEY, interner);
+            }
+        });
+    }
+
+    Outcome verify(String token) {
+        try {
+            WebAuthz auth = decode(token);
+            if (heavyHitters != null) {
+                heavyHitters.record(auth);
+            }
+            return auth.isExpired() ? Outcome.EXPIRED : Outcome.ACCEPTED;
+        } catch (RuntimeException e) {
+            return Outcome.REJECTED;
+        }
+    }
+
+    private final class Worker extends Thread {
+        final CountDownLatch start;
+        final long measureStart;
+        final long measureEnd;
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final long[] outcomes = new long[Outcome.values().length];
+        long allocatedBytes = -1;
+
+        Worker(int id, CountDownLatch start, long measureStart,
+                long measureEnd) {
+            super("load-generator-" + id);
+            this.start = start;
+            this.measureStart = measureStart;
+            this.measureEnd = measureEnd;
+        }
+
+        @Override
+        public void run() {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            boolean measuring = false;
+            long allocatedAtStart = -1;
+            while (true) {
+                final String[] pool = pools[kinds[sample(kindCdf,
+                        random.nextDouble())].ordinal()];
+                final String token = pool[sample(zipfCdf, random.nextDouble())];
+                final long t0 = System.nanoTime();
+                final Outcome outcome = verify(token);
+                final long t1 = System.nanoTime();
+                if (t1 >= measureEnd) {
+                    break;
+                } else if (measuring) {
+                    histogram.record(t1 - t0);
+                    outcomes[outcome.ordinal()]++;
+                } else if (t1 >= measureStart) {
+                    measuring = true;
+                    allocatedAtStart = allocatedBytes();
+                }
+            }
+            if (measuring && allocatedAtStart >= 0) {
+                long allocatedAtEnd = allocatedBytes();
+                allocatedBytes = allocatedAtEnd < 0 ? -1 : allocatedAtEnd
+                        - allocatedAtStart;
+            }
+        }
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean =
+                    (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported()
+                    && sunBean.isThreadAllocatedMemoryEnabled()) {
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread()
+                        .getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Records the duration of every collection, as reported by the
+     * collectors' notifications, so that one long pause can be told apart
+     * from many short ones. For concurrent collectors this is the duration
+     * of the whole cycle, not just of its stop-the-world phases.
+     */
+    static final class GcPauses implements NotificationListener {
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final List<NotificationEmitter> emitters = new ArrayList<>();
+
+        void start() {
+            for (GarbageCollectorMXBean bean : ManagementFactory
+                    .getGarbageCollectorMXBeans()) {
+                if (bean instanceof NotificationEmitter) {
+                    NotificationEmitter emitter = (NotificationEmitter) bean;
+                    emitter.addNotificationListener(this, null, null);
+                    emitters.add(emitter);
+                }
+            }
+        }
+
+        void stop() {
+            for (NotificationEmitter emitter : emitters) {
+                try {
+                    emitter.removeNotificationListener(this);
+                } catch (ListenerNotFoundException e) {
+                    // already gone
+                }
+            }
+        }
+
+        boolean isSupported() {
+            return !emitters.isEmpty();
+        }
+
+        @Override
+        public void handleNotification(Notification notification,
+                Object handback) {
+            if (GARBAGE_COLLECTION_NOTIFICATION.equals(notification
+                    .getType())) {
+                final long millis = GarbageCollectionNotificationInfo
+                        .from((CompositeData) notification.getUserData())
+                        .getGcInfo().getDuration();
+                synchronized (histogram) {
+                    histogram.record(Math.max(0, millis));
+                }
+            }
+        }
+
+        /**
+         * @return a copy of the pause durations (in milliseconds) so far
+         */
+        LatencyHistogram getHistogram() {
+            final LatencyHistogram copy = new LatencyHistogram();
+            synchronized (histogram) {
+                copy.add(histogram);
+            }
+            return copy;
+        }
+    }
+
+    private static long[] gcSnapshot() {
+        long count = 0;
+        long time = 0;
+        List<GarbageCollectorMXBean> beans = ManagementFactory
+                .getGarbageCollectorMXBeans();
+        for (GarbageCollectorMXBean bean : beans) {
+            count += Math.max(0, bean.getCollectionCount());
+            time += Math.max(0, bean.getCollectionTime());
+        }
+        return new long[] { count, time };
+    }
+
+    void run() throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final long begin = System.nanoTime() + 10000000L;
+        final long measureStart = begin + warmupNanos;
+        final long measureEnd = measureStart + durationNanos;
+        final Worker[] workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i, start, measureStart, measureEnd);
+            workers[i].start();
+        }
+        start.countDown();
+        Thread.sleep(Math.max(0, (measureStart - System.nanoTime()) / 1000000));
+        final long[] gcBefore = gcSnapshot();
+        final GcPauses gcPauses = new GcPauses();
+        gcPauses.start();
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final long[] outcomes = new long[Outcome.values().length];
+        long allocatedBytes = 0;
+        for (Worker worker : workers) {
+            worker.join();
+            histogram.add(worker.histogram);
+            for (int i = 0; i < outcomes.length; i++) {
+                outcomes[i] += worker.outcomes[i];
+            }
+            allocatedBytes = allocatedBytes < 0 || worker.allocatedBytes < 0
+                    ? -1 : allocatedBytes + worker.allocatedBytes;
+        }
+        final long[] gcAfter = gcSnapshot();
+        gcPauses.stop();
+        report(histogram, outcomes, allocatedBytes, gcAfter[0] - gcBefore[0],
+                gcAfter[1] - gcBefore[1], gcPauses.isSupported() ? gcPauses
+                        .getHistogram() : null);
+    }
+
+    private void report(LatencyHistogram histogram, long[] outcomes,
+            long allocatedBytes, long gcCount, long gcMillis,
+            LatencyHistogram gcPauses) {
+        final double seconds = durationNanos / 1e9;
+        final long total = histogram.getTotalCount();
+        System.out.printf("threads=%d duration=%.0fs interner=%s "
+                + "heavy-hitters=%s single-flight=%s%n", threads, seconds,
+                interner != null, heavyHitters != null, singleFlight != null);
+        System.out.printf("operations: %d (%.0f ops/s)%n", total, total
+                / seconds);
+        for (Outcome outcome : Outcome.values()) {
+            System.out.printf("  %-9s %d%n", outcome.name().toLowerCase(),
+                    outcomes[outcome.ordinal()]);
+        }
+        System.out.printf("latency (us): min=%.2f p50=%.2f p90=%.2f "
+                + "p99=%.2f p99.9=%.2f p99.99=%.2f max=%.2f%n",
+                histogram.getMin() / 1e3,
+                histogram.getValueAtPercentile(50) / 1e3,
+                histogram.getValueAtPercentile(90) / 1e3,
+                histogram.getValueAtPercentile(99) / 1e3,
+                histogram.getValueAtPercentile(99.9) / 1e3,
+                histogram.getValueAtPercentile(99.99) / 1e3,
+                histogram.getMax() / 1e3);
+        if (allocatedBytes < 0) {
+            System.out.println("allocation: not supported by this JVM");
+        } else {
+            System.out.printf("allocation: %.1f MB/s (%.0f bytes/op)%n",
+                    allocatedBytes / seconds / (1024 * 1024),
+                    total == 0 ? 0.0 : (double) allocatedBytes / total);
+        }
+        System.out.printf("gc: %d collections, %d ms total%n", gcCount,
+                gcMillis);
+        if (gcPauses == null) {
+            System.out.println("gc pauses: not supported by this JVM");
+        } else if (gcPauses.getTotalCount() > 0) {
+            System.out.printf("gc pauses (ms): p50=%d p99=%d max=%d%n",
+                    gcPauses.getValueAtPercentile(50),
+                    gcPauses.getValueAtPercentile(99), gcPauses.getMax());
+        }
+        if (singleFlight != null) {
+            System.out.println(singleFlight);
+        }
+        if (interner != null) {
+            System.out.println(interner);
+        }
+        if (heavyHitters != null) {
+            System.out.println("top base paths: "
+                    + heavyHitters.getTopBasePaths(5));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final LoadGenerator generator;
+        try {
+            generator = new LoadGenerator(parseOptions(args));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return;
+        }
+        generator.run();
+    }
+}
@@ -0,0 +1,569 @@
+package com.twitter.university.webauthz;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Store of verified grants kept off-heap, for holding millions of live
+ * sessions without growing the heap.
+ *
+ * Grants are written (in their {@link WebAuthz#toBytes()} form, behind a
+ * small fixed header) into fixed-size slots of direct {@link ByteBuffer}
+ * slabs, which are allocated on demand up to a hard cap given at
+ * construction. The index from key to slot is an open-addressing table of
+ * primitive arrays, so the heap holds a handful of large objects no matter
+ * how many grants are stored. The expiry, quota, user id and access of a
+ * grant, and whether it covers a path, can be read straight from its slot;
+ * {@link #get(long)} materializes the whole {@link WebAuthz} only when needed.
+ *
+ * Expired grants are never returned. When the store is full, a put reclaims
+ * the slot of an expired grant found by a clock sweep over a bounded number
+ * of slots; if there is none, the put is refused rather than exceeding the
+ * cap. Since the next put resumes the sweep where it stopped, a full store
+ * reclaims its expired slots over successive puts, or all at once with
+ * {@link #evictExpired()}.
+ *
+ * The store is split into segments, each guarded by its own read-write lock,
+ * so readers never block each other and writers only contend within a
+ * segment. Each segment gets an equal share of the cap, so a nearly full
+ * store may refuse a put before every last slot is taken. Keys are normally
+ * derived from the encoded token with {@link #keyOf(String)}.
+ */
+public final class OffHeapGrantStore {
+
+    private static final int DEFAULT_SLOT_SIZE = 256;
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SLOTS_PER_SEGMENT = 1024;
+    private static final int MAX_SLAB_SIZE = 1 << 26;
+    private static final int MAX_SWEEP = 64;
+
+    private static final int KEY_OFFSET = 0;
+    private static final int EXPIRY_OFFSET = 8;
+    private static final int QUOTA_OFFSET = 16;
+    private static final int USER_ID_OFFSET = 24;
+    private static final int ACCESS_OFFSET = 32;
+    private static final int FLAGS_OFFSET = 33;
+    private static final int LENGTH_OFFSET = 34;
+    private static final int DATA_OFFSET = 36;
+    private static final int MAX_SLOT_SIZE = DATA_OFFSET + 0xffff;
+
+    private static final byte FLAG_USED = 0x01;
+    private static final byte FLAG_ADDITIONAL_PATHS = 0x02;
+
+    private static boolean isExpired(long expiry, long now) {
+        return expiry > 0 && now > expiry;
+    }
+
+    private static Set<Access> toAccess(byte bits) {
+        return Access.fromBooleans((bits & (1 << Access.READ.ordinal())) != 0,
+                (bits & (1 << Access.WRITE.ordinal())) != 0);
+    }
+
+    private final class Segment {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final int capacity;
+        final ByteBuffer[] slabs;
+        final long[] indexKeys;
+        final int[] indexSlots;
+        final int mask;
+        final int[] freeSlots;
+        int freeCount;
+        int unusedSlot;
+        int clockHand;
+        int size;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.slabs = new ByteBuffer[(capacity + slotsPerSlab - 1)
+                    / slotsPerSlab];
+            int indexSize = Integer.highestOneBit(Math.max(2,
+                    capacity * 2 - 1)) << 1;
+            this.indexKeys = new long[indexSize];
+            this.indexSlots = new int[indexSize];
+            Arrays.fill(indexSlots, -1);
+            this.mask = indexSize - 1;
+            this.freeSlots = new int[capacity];
+        }
+
+        ByteBuffer slab(int slot) {
+            return slabs[slot / slotsPerSlab];
+        }
+
+        int offset(int slot) {
+            return (slot % slotsPerSlab) * slotSize;
+        }
+
+        int find(long key) {
+            for (int i = (int) Util.mix(key) & mask;; i = (i + 1)
+                    & mask) {
+                if (indexSlots[i] < 0) {
+                    return -1;
+                } else if (indexKeys[i] == key) {
+                    return i;
+                }
+            }
+        }
+
+        void insert(long key, int slot) {
+            int i = (int) Util.mix(key) & mask;
+            while (indexSlots[i] >= 0) {
+                i = (i + 1) & mask;
+            }
+            indexKeys[i] = key;
+            indexSlots[i] = slot;
+            size++;
+        }
+
+        void delete(int i) {
+            final int slot = indexSlots[i];
+            slab(slot).put(offset(slot) + FLAGS_OFFSET, (byte) 0);
+            freeSlots[freeCount++] = slot;
+            indexSlots[i] = -1;
+            size--;
+            // shift back any entries that probed past the freed position
+            for (int j = (i + 1) & mask; indexSlots[j] >= 0; j = (j + 1)
+                    & mask) {
+                int ideal = (int) Util.mix(indexKeys[j]) & mask;
+                if (i <= j ? (ideal <= i || ideal > j)
+                        : (ideal <= i && ideal > j)) {
+                    indexKeys[i] = indexKeys[j];
+                    indexSlots[i] = indexSlots[j];
+                    indexSlots[j] = -1;
+                    i = j;
+                }
+            }
+        }
+
+        int allocate(long now) {
+            if (freeCount > 0) {
+                return freeSlots[--freeCount];
+            } else if (unusedSlot < capacity) {
+                int slot = unusedSlot++;
+                if (slab(slot) == null) {
+                    int slabSlots = Math.min(slotsPerSlab, capacity - slot);
+                    slabs[slot / slotsPerSlab] = ByteBuffer
+                            .allocateDirect(slabSlots * slotSize);
+                }
+                return slot;
+            }
+            for (int n = Math.min(capacity, MAX_SWEEP); n > 0; n--) {
+                final int slot = clockHand;
+                clockHand = (clockHand + 1) % capacity;
+                final ByteBuffer slab = slab(slot);
+                final int offset = offset(slot);
+                if ((slab.get(offset + FLAGS_OFFSET) & FLAG_USED) != 0
+                        && isExpired(slab.getLong(offset + EXPIRY_OFFSET),
+                                now)) {
+                    delete(find(slab.getLong(offset + KEY_OFFSET)));
+                    return freeSlots[--freeCount];
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return the slot of the unexpired grant stored under the given key,
+         *         or -1; must be called with the lock held
+         */
+        int locate(long key, long now) {
+            final int i = find(key);
+            if (i < 0) {
+                return -1;
+            }
+            final int slot = indexSlots[i];
+            return isExpired(slab(slot)
+                    .getLong(offset(slot) + EXPIRY_OFFSET), now) ? -1 : slot;
+        }
+    }
+
+    private final int slotSize;
+    private final int slotsPerSlab;
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final long k0;
+    private final long k1;
+
+    public OffHeapGrantStore(long maxBytes) {
+        this(maxBytes, DEFAULT_SLOT_SIZE);
+    }
+
+    /**
+     * @param maxBytes
+     *            the hard cap on the off-heap memory used for grants
+     * @param slotSize
+     *            the number of bytes reserved per grant, including a 36 byte
+     *            header and at most 64K of data; grants that do not fit are
+     *            refused
+     */
+    public OffHeapGrantStore(long maxBytes, int slotSize) {
+        if (slotSize <= DATA_OFFSET || slotSize > MAX_SLOT_SIZE) {
+            throw new IllegalArgumentException("Slot size out of range ["
+                    + (DATA_OFFSET + 1) + ", " + MAX_SLOT_SIZE + "]: "
+                    + slotSize);
+        }
+        final long totalSlots = maxBytes / slotSize;
+        if (totalSlots <= 0) {
+            throw new IllegalArgumentException(
+                    "Max bytes must fit at least one slot: " + maxBytes);
+        }
+        int segmentCount = 1;
+        while (segmentCount < MAX_SEGMENTS
+                && totalSlots / (segmentCount * 2) >= MIN_SLOTS_PER_SEGMENT) {
+            segmentCount *= 2;
+        }
+        if (totalSlots / segmentCount > 1 << 29) {
+            throw new IllegalArgumentException("Too many slots: "
+                    + totalSlots);
+        }
+        this.slotSize = slotSize;
+        this.slotsPerSlab = MAX_SLAB_SIZE / slotSize;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            this.segments[i] = new Segment((int) (totalSlots / segmentCount));
+        }
+        this.segmentShift = 64 - Integer.numberOfTrailingZeros(segmentCount);
+        final SecureRandom random = new SecureRandom();
+        this.k0 = random.nextLong();
+        this.k1 = random.nextLong();
+    }
+
+    private Segment segmentFor(long key) {
+        return segmentShift == 64 ? segments[0]
+                : segments[(int) (Util.mix(key) >>> segmentShift)];
+    }
+
+    /**
+     * @return a 64-bit key for the given encoded token, computed with
+     *         SipHash-2-4 under a random per-store secret, so that keys of
+     *         different tokens cannot be made to collide on purpose
+     */
+    public long keyOf(String token) {
+        long v0 = k0 ^ 0x736f6d6570736575L;
+        long v1 = k1 ^ 0x646f72616e646f6dL;
+        long v2 = k0 ^ 0x6c7967656e657261L;
+        long v3 = k1 ^ 0x7465646279746573L;
+        final int length = token.length();
+        final int end = length - (length % 4);
+        for (int i = 0; i <= end; i += 4) {
+            long m;
+            if (i < end) {
+                m = token.charAt(i) | (long) token.charAt(i + 1) << 16
+                        | (long) token.charAt(i + 2) << 32
+                        | (long) token.charAt(i + 3) << 48;
+            } else {
+                m = (long) (2 * length) << 56;
+                for (int j = 0; i + j < length; j++) {
+                    m |= (long) token.charAt(i + j) << (16 * j);
+                }
+            }
+            v3 ^= m;
+            for (int r = 0; r < 2; r++) {
+                v0 += v1;
+                v1 = Long.rotateLeft(v1, 13) ^ v0;
+                v0 = Long.rotateLeft(v0, 32);
+                v2 += v3;
+                v3 = Long.rotateLeft(v3, 16) ^ v2;
+                v0 += v3;
+                v3 = Long.rotateLeft(v3, 21) ^ v0;
+                v2 += v1;
+                v1 = Long.rotateLeft(v1, 17) ^ v2;
+                v2 = Long.rotateLeft(v2, 32);
+            }
+            v0 ^= m;
+        }
+        v2 ^= 0xff;
+        for (int r = 0; r < 4; r++) {
+            v0 += v1;
+            v1 = Long.rotateLeft(v1, 13) ^ v0;
+            v0 = Long.rotateLeft(v0, 32);
+            v2 += v3;
+            v3 = Long.rotateLeft(v3, 16) ^ v2;
+            v0 += v3;
+            v3 = Long.rotateLeft(v3, 21) ^ v0;
+            v2 += v1;
+            v1 = Long.rotateLeft(v1, 17) ^ v2;
+            v2 = Long.rotateLeft(v2, 32);
+        }
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+
+    /**
+     * Stores (or replaces) the grant under the given key.
+     *
+     * @return false if the grant does not fit in a slot, or if the store is
+     *         full and the sweep found no expired grant
+     */
+    public boolean put(long key, WebAuthz auth) {
+        if (DATA_OFFSET + (long) auth.sizeOfBytes() > slotSize) {
+            return false;
+        }
+        final long now = System.currentTimeMillis();
+        final Segment segment = segmentFor(key);
+        segment.lock.writeLock().lock();
+        try {
+            final int existing = segment.find(key);
+            if (existing >= 0) {
+                segment.delete(existing);
+            }
+            final int slot = segment.allocate(now);
+            if (slot < 0) {
+                return false;
+            }
+            final ByteBuffer slab = segment.slab(slot);
+            final int offset = segment.offset(slot);
+            final ByteBuffer out = slab.duplicate();
+            out.limit(offset + slotSize).position(offset + DATA_OFFSET);
+            try {
+                auth.toBytes(out);
+            } catch (BufferOverflowException | IllegalArgumentException e) {
+                // cannot happen once the size is checked, but never leak a slot
+                segment.freeSlots[segment.freeCount++] = slot;
+                return false;
+            }
+            slab.putLong(offset + KEY_OFFSET, key);
+            slab.putLong(offset + EXPIRY_OFFSET, auth.getExpiry());
+            slab.putLong(offset + QUOTA_OFFSET, auth.getQuota());
+            slab.putLong(offset + USER_ID_OFFSET, auth.getUserId());
+            slab.put(offset + ACCESS_OFFSET, Access.toByte(auth.getAccess()));
+            slab.put(offset + FLAGS_OFFSET, (byte) (FLAG_USED | (auth
+                    .getAdditionalPaths().isEmpty() ? 0
+                    : FLAG_ADDITIONAL_PATHS)));
+            slab.putShort(offset + LENGTH_OFFSET,
+                    (short) (out.position() - offset - DATA_OFFSET));
+            segment.insert(key, slot);
+            return true;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    private WebAuthz materialize(ByteBuffer slab, int offset) {
+        final ByteBuffer in = slab.duplicate();
+        in.limit(offset + DATA_OFFSET
+                + (slab.getShort(offset + LENGTH_OFFSET) & 0xffff));
+        in.position(offset + DATA_OFFSET);
+        return WebAuthz.fromBytes(in);
+    }
+
+    /**
+     * @return the grant stored under the given key, or null if there is none
+     *         or it has expired
+     */
+    public WebAuthz get(long key) {
+        final Segment segment = segmentFor(key);
+        segment.lock.readLock().lock();
+        try {
+            final int slot = segment.locate(key, System.currentTimeMillis());
+            return slot < 0 ? null : materialize(segment.slab(slot),
+                    segment.offset(slot));
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(long key) {
+        final Segment segment = segmentFor(key);
+        segment.lock.readLock().lock();
+        try {
+            return segment.locate(key, System.currentTimeMillis()) >= 0;
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    private long getLong(long key, int field) {
+        final Segment segment = segmentFor(key);
+        segment.lock.readLock().lock();
+        try {
+            final int slot = segment.locate(key, System.currentTimeMillis());
+            return slot < 0 ? -1 : segment.slab(slot).getLong(
+                    segment.offset(slot) + field);
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the expiry of the grant stored under the given key, or -1 if
+     *         there is none or it has expired
+     */
+    public long getExpiry(long key) {
+        return getLong(key, EXPIRY_OFFSET);
+    }
+
+    /**
+     * @return the quota of the grant stored under the given key, or -1 if
+     *         there is none or it has expired
+     */
+    public long getQuota(long key) {
+        return getLong(key, QUOTA_OFFSET);
+    }
+
+    /**
+     * @return the user id of the grant stored under the given key, or -1 if
+     *         there is none or it has expired
+     */
+    public long getUserId(long key) {
+        return getLong(key, USER_ID_OFFSET);
+    }
+
+    /**
+     * @return the access to the base path of the grant stored under the given
+     *         key, or {@link Access#NONE} if there is none or it has expired
+     */
+    public Set<Access> getAccess(long key) {
+        final Segment segment = segmentFor(key);
+        segment.lock.readLock().lock();
+        try {
+            final int slot = segment.locate(key, System.currentTimeMillis());
+            return slot < 0 ? Access.NONE : toAccess(segment.slab(slot).get(
+                    segment.offset(slot) + ACCESS_OFFSET));
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Same as {@link WebAuthz#getAccess(String)} for the grant stored under
+     * the given key. For single-path grants with an ASCII base path this
+     * compares the path directly against the stored bytes.
+     *
+     * @return the access granted to the given path, or {@link Access#NONE} if
+     *         there is no grant or it has expired
+     */
+    public Set<Access> getAccess(long key, String path) {
+        final Segment segment = segmentFor(key);
+        segment.lock.readLock().lock();
+        try {
+            final int slot = segment.locate(key, System.currentTimeMillis());
+            if (slot < 0) {
+                return Access.NONE;
+            }
+            final ByteBuffer slab = segment.slab(slot);
+            final int offset = segment.offset(slot);
+            final byte flags = slab.get(offset + FLAGS_OFFSET);
+            if ((flags & FLAG_ADDITIONAL_PATHS) == 0) {
+                // skip the serial version, access and expiry
+                int position = offset + DATA_OFFSET + 2;
+                position += (slab.get(position) & 0x80) == 0 ? 1 : 8;
+                final int length = slab.getShort(position) & 0xffff;
+                position += 2;
+                // only for ASCII is the stored length also the length in chars
+                boolean ascii = true;
+                for (int i = 0; i < length && ascii; i++) {
+                    ascii = slab.get(position + i) >= 0;
+                }
+                if (ascii) {
+                    boolean matches = length <= path.length();
+                    for (int i = 0; i < length && matches; i++) {
+                        matches = path.charAt(i) == slab.get(position + i);
+                    }
+                    return matches ? toAccess(slab.get(offset + ACCESS_OFFSET))
+                            : Access.NONE;
+                }
+            }
+            return materialize(slab, offset).getAccess(path);
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    public boolean remove(long key) {
+        final Segment segment = segmentFor(key);
+        segment.lock.writeLock().lock();
+        try {
+            final int i = segment.find(key);
+            if (i < 0) {
+                return false;
+            }
+            segment.delete(i);
+            return true;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Frees the slots of all expired grants.
+     *
+     * @return the number of grants removed
+     */
+    public int evictExpired() {
+        final long now = System.currentTimeMillis();
+        int evicted = 0;
+        for (Segment segment : segments) {
+            segment.lock.writeLock().lock();
+            try {
+                for (int slot = 0; slot < segment.unusedSlot; slot++) {
+                    final ByteBuffer slab = segment.slab(slot);
+                    final int offset = segment.offset(slot);
+                    if ((slab.get(offset + FLAGS_OFFSET) & FLAG_USED) != 0
+                            && isExpired(slab.getLong(offset + EXPIRY_OFFSET),
+                                    now)) {
+                        segment.delete(segment.find(slab.getLong(offset
+                                + KEY_OFFSET)));
+                        evicted++;
+                    }
+                }
+            } finally {
+                segment.lock.writeLock().unlock();
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * @return the number of stored grants, including any that have expired
+     *         but whose slots have not been reclaimed yet
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            segment.lock.readLock().lock();
+            try {
+                size += segment.size;
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    public long getCapacity() {
+        long capacity = 0;
+        for (Segment segment : segments) {
+            capacity += segment.capacity;
+        }
+        return capacity;
+    }
+
+    /**
+     * @return the number of off-heap bytes allocated so far, which never
+     *         exceeds the cap given at construction
+     */
+    public long getAllocatedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            segment.lock.readLock().lock();
+            try {
+                for (ByteBuffer slab : segment.slabs) {
+                    bytes += slab == null ? 0 : slab.capacity();
+                }
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapGrantStore [slotSize=" + slotSize + ", segments="
+                + segments.length + ", capacity=" + getCapacity() + ", size="
+                + size() + "]";
+    }
+}
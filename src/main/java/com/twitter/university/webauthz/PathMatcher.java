@@ -0,0 +1,137 @@
+package com.twitter.university.webauthz;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiled set of base paths, each with its own access.
+ *
+ * The paths are stored as a character trie flattened breadth-first into a
+ * few parallel arrays (one slot per node), with the children of each node
+ * next to each other and sorted by character. {@link #getAccess(String)}
+ * walks the request path once and finds each child by binary search, so its
+ * cost grows with the length of the request path and only logarithmically
+ * with the number of base paths that diverge at the same node. A base path
+ * grants its access to every path it is a prefix of; when several base paths
+ * match, their access is combined.
+ */
+public final class PathMatcher {
+
+    private final char[] labels;
+    // the children of node n are the nodes firstChild[n] to firstChild[n + 1]
+    private final int[] firstChild;
+    private final byte[] access;
+
+    private PathMatcher(char[] labels, int[] firstChild, byte[] access) {
+        this.labels = labels;
+        this.firstChild = firstChild;
+        this.access = access;
+    }
+
+    public static PathMatcher compile(Map<String, Set<Access>> paths) {
+        int capacity = 1;
+        for (String path : paths.keySet()) {
+            capacity += path.length();
+        }
+        // build a linked trie first, then lay it out for lookups
+        char[] labels = new char[capacity];
+        int[] firstChild = new int[capacity];
+        int[] nextSibling = new int[capacity];
+        byte[] access = new byte[capacity];
+        Arrays.fill(firstChild, -1);
+        Arrays.fill(nextSibling, -1);
+        int size = 1; // the root
+        for (Map.Entry<String, Set<Access>> entry : paths.entrySet()) {
+            final String path = entry.getKey();
+            int node = 0;
+            for (int i = 0; i < path.length(); i++) {
+                final char c = path.charAt(i);
+                int child = firstChild[node];
+                while (child >= 0 && labels[child] != c) {
+                    child = nextSibling[child];
+                }
+                if (child < 0) {
+                    child = size++;
+                    labels[child] = c;
+                    nextSibling[child] = firstChild[node];
+                    firstChild[node] = child;
+                }
+                node = child;
+            }
+            access[node] |= Access.toByte(Access.notNull(entry.getValue()));
+        }
+
+        // number the nodes breadth-first, so that siblings are contiguous
+        final int[] order = new int[size];
+        final int[] start = new int[size + 1];
+        int next = 1;
+        for (int n = 0; n < size; n++) {
+            start[n] = next;
+            for (int child = firstChild[order[n]]; child >= 0;
+                    child = nextSibling[child]) {
+                // insertion sort by label; most nodes have very few children
+                int i = next++;
+                while (i > start[n] && labels[order[i - 1]] > labels[child]) {
+                    order[i] = order[i - 1];
+                    i--;
+                }
+                order[i] = child;
+            }
+        }
+        start[size] = size;
+        final char[] sortedLabels = new char[size];
+        final byte[] sortedAccess = new byte[size];
+        for (int n = 0; n < size; n++) {
+            sortedLabels[n] = labels[order[n]];
+            sortedAccess[n] = access[order[n]];
+        }
+        return new PathMatcher(sortedLabels, start, sortedAccess);
+    }
+
+    /**
+     * @return the combined access of all base paths that are a prefix of the
+     *         given path
+     */
+    public Set<Access> getAccess(String path) {
+        int result = access[0];
+        int node = 0;
+        for (int i = 0; i < path.length(); i++) {
+            final int child = findChild(node, path.charAt(i));
+            if (child < 0) {
+                break;
+            }
+            node = child;
+            result |= access[node];
+        }
+        return Access.fromBooleans(
+                (result & (1 << Access.READ.ordinal())) != 0,
+                (result & (1 << Access.WRITE.ordinal())) != 0);
+    }
+
+    private int findChild(int node, char c) {
+        int low = firstChild[node];
+        int high = firstChild[node + 1] - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final char label = labels[mid];
+            if (label < c) {
+                low = mid + 1;
+            } else if (label > c) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public int getNodeCount() {
+        return labels.length;
+    }
+
+    @Override
+    public String toString() {
+        return "PathMatcher [nodes=" + labels.length + "]";
+    }
+}
@@ -0,0 +1,119 @@
+package com.twitter.university.webauthz;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent computations for the same key, so that they run once
+ * and share the result.
+ *
+ * The first caller for a key runs the computation on its own thread; callers
+ * arriving with the same key while it is in flight wait for it and get the
+ * same result (or the same exception). Nothing is retained once the
+ * computation completes, so this is not a cache, but it can be put in front
+ * of one (or of {@link WebAuthz#decode(String, java.security.Key)}) to stop a
+ * burst of identical requests from doing the same work in parallel.
+ * In-flight keys live in a {@link ConcurrentHashMap}, so unrelated keys do
+ * not contend.
+ *
+ * <pre>
+ * final SingleFlight&lt;String, WebAuthz&gt; decodes = new SingleFlight&lt;&gt;();
+ * WebAuthz auth = decodes.execute(token, new Callable&lt;WebAuthz&gt;() {
+ *     public WebAuthz call() {
+ *         return WebAuthz.decode(token, key);
+ *     }
+ * });
+ * </pre>
+ */
+public final class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * @return the result of the given computation, or of the one already in
+     *         flight for the same key
+     * @throws RuntimeException
+     *             if the computation failed; runtime exceptions and errors are
+     *             rethrown as is, checked exceptions are wrapped
+     */
+    public V execute(K key, Callable<V> computation) {
+        FutureTask<V> task = inFlight.get(key);
+        if (task == null) {
+            final FutureTask<V> newTask = new FutureTask<>(computation);
+            task = inFlight.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                executed.incrementAndGet();
+                try {
+                    newTask.run();
+                } finally {
+                    inFlight.remove(key, newTask);
+                }
+            } else {
+                shared.incrementAndGet();
+            }
+        } else {
+            shared.incrementAndGet();
+        }
+        return getUninterruptibly(task, key);
+    }
+
+    private static <V> V getUninterruptibly(FutureTask<V> task, Object key) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException("Failed to compute [" + key + "]",
+                    cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the number of computations that have actually been run
+     */
+    public long getExecutedCount() {
+        return executed.get();
+    }
+
+    /**
+     * @return the number of calls that joined a computation already in flight
+     */
+    public long getSharedCount() {
+        return shared.get();
+    }
+
+    /**
+     * @return the number of computations currently in flight
+     */
+    public int size() {
+        return inFlight.size();
+    }
+
+    @Override
+    public String toString() {
+        return "SingleFlight [executed=" + getExecutedCount() + ", shared="
+                + getSharedCount() + ", inFlight=" + size() + "]";
+    }
+}
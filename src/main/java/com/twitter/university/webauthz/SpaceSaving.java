@@ -0,0 +1,233 @@
+package com.twitter.university.webauthz;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed-memory, striped Space-Saving (top-k) sketch.
+ *
+ * Updates are spread across a number of stripes (picked by the calling
+ * thread), each holding at most <code>capacity</code> monitored items and
+ * guarded by its own lock. A busy stripe is skipped in favour of the next one,
+ * so concurrent updaters rarely wait on each other. When a stripe is full, the
+ * least frequent item is evicted and its count inherited by the new item (and
+ * recorded as its error), which bounds the cost of an update to
+ * <code>O(capacity)</code> regardless of how many distinct items are seen.
+ * {@link #top(int)} merges all stripes into a snapshot.
+ */
+public final class SpaceSaving<T> {
+
+    public static final class Entry<T> {
+        private final T item;
+        private final long count;
+        private final long error;
+
+        Entry(T item, long count, long error) {
+            this.item = item;
+            this.count = count;
+            this.error = error;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        /**
+         * @return the estimated count, summed across all stripes, which never
+         *         under-counts
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the maximum amount by which {@link #getCount()} may
+         *         over-count
+         */
+        public long getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry [item=" + item + ", count=" + count + ", error="
+                    + error + "]";
+        }
+    }
+
+    private static final class Counter {
+        long count;
+        long error;
+
+        Counter(long count, long error) {
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    private static final class Stripe<T> extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+
+        final Map<T, Counter> counters;
+
+        Stripe(int capacity) {
+            this.counters = new HashMap<>(capacity * 2);
+        }
+    }
+
+    private static final Comparator<Entry<?>> BY_COUNT_DESC = new Comparator<Entry<?>>() {
+        @Override
+        public int compare(Entry<?> e1, Entry<?> e2) {
+            return e1.getCount() < e2.getCount() ? 1
+                    : e1.getCount() > e2.getCount() ? -1 : 0;
+        }
+    };
+
+    private final int capacity;
+    private final Stripe<T>[] stripes;
+
+    public SpaceSaving(int capacity) {
+        this(capacity, Runtime.getRuntime().availableProcessors());
+    }
+
+    @SuppressWarnings("unchecked")
+    public SpaceSaving(int capacity, int stripes) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: "
+                    + capacity);
+        }
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("Stripes must be positive: "
+                    + stripes);
+        }
+        this.capacity = capacity;
+        this.stripes = (Stripe<T>[]) new Stripe<?>[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe<>(capacity);
+        }
+    }
+
+    public void offer(T item) {
+        if (item == null) {
+            throw new NullPointerException("Item must not be null");
+        }
+        final int start = (int) (Thread.currentThread().getId() % stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            Stripe<T> stripe = stripes[(start + i) % stripes.length];
+            if (stripe.tryLock()) {
+                try {
+                    offer(stripe, item);
+                } finally {
+                    stripe.unlock();
+                }
+                return;
+            }
+        }
+        Stripe<T> stripe = stripes[start];
+        stripe.lock();
+        try {
+            offer(stripe, item);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    private void offer(Stripe<T> stripe, T item) {
+        final Map<T, Counter> counters = stripe.counters;
+        Counter counter = counters.get(item);
+        if (counter != null) {
+            counter.count++;
+        } else if (counters.size() < capacity) {
+            counters.put(item, new Counter(1, 0));
+        } else {
+            Map.Entry<T, Counter> min = null;
+            for (Map.Entry<T, Counter> e : counters.entrySet()) {
+                if (min == null || e.getValue().count < min.getValue().count) {
+                    min = e;
+                }
+            }
+            long minCount = min.getValue().count;
+            counters.remove(min.getKey());
+            counters.put(item, new Counter(minCount + 1, minCount));
+        }
+    }
+
+    public List<Entry<T>> top(int n) {
+        final List<Map<T, Counter>> snapshots = new ArrayList<>(
+                stripes.length);
+        final long[] minCounts = new long[stripes.length];
+        final Set<T> items = new HashSet<>();
+        for (int i = 0; i < stripes.length; i++) {
+            final Stripe<T> stripe = stripes[i];
+            final Map<T, Counter> snapshot = new HashMap<>(capacity * 2);
+            stripe.lock();
+            try {
+                for (Map.Entry<T, Counter> e : stripe.counters.entrySet()) {
+                    snapshot.put(e.getKey(), new Counter(e.getValue().count,
+                            e.getValue().error));
+                }
+            } finally {
+                stripe.unlock();
+            }
+            // an item a full stripe does not monitor may have been seen there
+            // up to as many times as that stripe's least frequent item
+            long min = 0;
+            if (snapshot.size() >= capacity) {
+                min = Long.MAX_VALUE;
+                for (Counter counter : snapshot.values()) {
+                    min = Math.min(min, counter.count);
+                }
+            }
+            snapshots.add(snapshot);
+            minCounts[i] = min;
+            items.addAll(snapshot.keySet());
+        }
+        final List<Entry<T>> entries = new ArrayList<>(items.size());
+        for (T item : items) {
+            long count = 0;
+            long error = 0;
+            for (int i = 0; i < stripes.length; i++) {
+                final Counter counter = snapshots.get(i).get(item);
+                if (counter == null) {
+                    count += minCounts[i];
+                    error += minCounts[i];
+                } else {
+                    count += counter.count;
+                    error += counter.error;
+                }
+            }
+            entries.add(new Entry<T>(item, count, error));
+        }
+        Collections.sort(entries, BY_COUNT_DESC);
+        return Collections.unmodifiableList(entries.subList(0,
+                Math.min(n, entries.size())));
+    }
+
+    public void clear() {
+        for (Stripe<T> stripe : stripes) {
+            stripe.lock();
+            try {
+                stripe.counters.clear();
+            } finally {
+                stripe.unlock();
+            }
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public String toString() {
+        return "SpaceSaving [capacity=" + capacity + ", stripes="
+                + stripes.length + "]";
+    }
+}
@@ -0,0 +1,166 @@
+package com.twitter.university.webauthz;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free interner for strings read from encoded webauthz tokens.
+ *
+ * Strings are looked up by their raw (modified) UTF-8 bytes, so a hit returns
+ * the previously decoded instance without allocating a new string or decoding
+ * the bytes again. The table is direct-mapped: each slot holds at most one
+ * string and a colliding miss simply replaces it, so memory stays bounded by
+ * the number of slots times the maximum interned length. Strings longer than
+ * that are decoded but never interned.
+ *
+ * <pre>
+ * StringInterner interner = new StringInterner();
+ * WebAuthz auth = WebAuthz.decode(token, key, interner);
+ * </pre>
+ */
+public final class StringInterner {
+
+    private static final int DEFAULT_SLOTS = 4096;
+    private static final int DEFAULT_MAX_LENGTH = 256;
+
+    // shallow size of a String plus the header of its backing array
+    private static final int STRING_OVERHEAD = 40;
+
+    private static final class Entry {
+        final int hash;
+        final byte[] bytes;
+        final String value;
+
+        Entry(int hash, byte[] bytes, String value) {
+            this.hash = hash;
+            this.bytes = bytes;
+            this.value = value;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> table;
+    private final int mask;
+    private final int maxLength;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    public StringInterner() {
+        this(DEFAULT_SLOTS, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param slots
+     *            the number of strings retained, rounded up to a power of two
+     * @param maxLength
+     *            the maximum encoded length (in bytes) of an interned string
+     */
+    public StringInterner(int slots, int maxLength) {
+        if (slots <= 0 || slots > 1 << 30) {
+            throw new IllegalArgumentException("Slots out of range [1, "
+                    + (1 << 30) + "]: " + slots);
+        }
+        if (maxLength < 0) {
+            throw new IllegalArgumentException(
+                    "Max length must not be negative: " + maxLength);
+        }
+        int size = Integer.highestOneBit(slots);
+        if (size < slots) {
+            size <<= 1;
+        }
+        this.table = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.maxLength = maxLength;
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int h = length;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + bytes[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(byte[] key, byte[] bytes, int offset,
+            int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != bytes[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the string encoded as modified UTF-8 in the given range,
+     *         possibly an instance shared with previous calls
+     * @throws IllegalArgumentException
+     *             if the bytes are not valid modified UTF-8
+     */
+    public String intern(byte[] bytes, int offset, int length) {
+        if (length == 0) {
+            return "";
+        } else if (length > maxLength) {
+            misses.incrementAndGet();
+            return Util.decodeModifiedUtf8(bytes, offset, length);
+        }
+        final int hash = hash(bytes, offset, length);
+        final int slot = hash & mask;
+        final Entry entry = table.get(slot);
+        if (entry != null && entry.hash == hash
+                && matches(entry.bytes, bytes, offset, length)) {
+            hits.incrementAndGet();
+            bytesSaved.addAndGet(STRING_OVERHEAD + 2L
+                    * entry.value.length());
+            return entry.value;
+        }
+        misses.incrementAndGet();
+        final byte[] key = new byte[length];
+        System.arraycopy(bytes, offset, key, 0, length);
+        final String value = Util.decodeModifiedUtf8(key, 0, length);
+        table.set(slot, new Entry(hash, key, value));
+        return value;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        final long h = getHits();
+        final long total = h + getMisses();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * @return an estimate of the heap not allocated thanks to hits, based on
+     *         the size of the strings that would otherwise have been created
+     */
+    public long getEstimatedBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    public void clear() {
+        for (int i = 0; i < table.length(); i++) {
+            table.set(i, null);
+        }
+        hits.set(0);
+        misses.set(0);
+        bytesSaved.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "StringInterner [slots=" + table.length() + ", maxLength="
+                + maxLength + ", hits=" + getHits() + ", misses="
+                + getMisses() + ", estimatedBytesSaved="
+                + getEstimatedBytesSaved() + "]";
+    }
+}
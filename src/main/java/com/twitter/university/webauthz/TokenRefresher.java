@@ -0,0 +1,316 @@
+package com.twitter.university.webauthz;
+
+import java.io.Closeable;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+
+/**
+ * Re-mints tracked webauthz shortly before they expire, so that clients never
+ * have to re-authenticate all at once.
+ *
+ * Each tracked webauthz is scheduled for refresh a fixed interval ahead of its
+ * expiry, minus a random jitter, which spreads tokens issued together over
+ * time. A single background thread wakes up at a fixed interval and re-mints
+ * at most one batch of due webauthz, with the same fields and lifetime, all
+ * signed by one {@link Mac}. The new tokens are handed to the
+ * {@link Listener}, and the refreshed webauthz stays tracked until its
+ * {@link Ticket} is cancelled. Anything that does not fit in a batch is
+ * picked up by the next one, which caps the issuance rate.
+ *
+ * <pre>
+ * TokenRefresher refresher = new TokenRefresher(key, listener, 60000, 30000,
+ *         1000, 500);
+ * refresher.start();
+ * Ticket ticket = refresher.track(auth);
+ * ...
+ * ticket.cancel(); // e.g. on logout
+ * </pre>
+ */
+public final class TokenRefresher implements Closeable {
+
+    public interface Listener {
+        /**
+         * Called from the refresher's thread with each newly minted token.
+         * Exceptions are ignored and do not stop the ticket from being
+         * refreshed again.
+         */
+        void onRefresh(Ticket ticket, WebAuthz auth, String token);
+    }
+
+    public static final class Ticket implements Delayed {
+        private final long lifetimeMillis;
+        private volatile WebAuthz current;
+        private volatile boolean cancelled;
+        private long refreshAt;
+
+        Ticket(WebAuthz auth, long lifetimeMillis) {
+            this.current = auth;
+            this.lifetimeMillis = lifetimeMillis;
+        }
+
+        public WebAuthz getCurrent() {
+            return current;
+        }
+
+        public long getLifetimeMillis() {
+            return lifetimeMillis;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(refreshAt - System.currentTimeMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other instanceof Ticket) {
+                long r1 = refreshAt;
+                long r2 = ((Ticket) other).refreshAt;
+                return r1 < r2 ? -1 : r1 > r2 ? 1 : 0;
+            }
+            long d1 = getDelay(TimeUnit.MILLISECONDS);
+            long d2 = other.getDelay(TimeUnit.MILLISECONDS);
+            return d1 < d2 ? -1 : d1 > d2 ? 1 : 0;
+        }
+    }
+
+    /**
+     * The longest lifetime a tracked webauthz may be re-minted with, about
+     * 100 years.
+     */
+    public static final long MAX_LIFETIME_MILLIS = 100L * 365 * 24 * 60 * 60
+            * 1000;
+
+    private final Key key;
+    private final Listener listener;
+    private final long refreshAheadMillis;
+    private final long jitterMillis;
+    private final long batchIntervalMillis;
+    private final int maxBatchSize;
+    private final DelayQueue<Ticket> queue = new DelayQueue<>();
+    private final ScheduledExecutorService executor;
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param key
+     *            the key to sign the refreshed webauthz with
+     * @param listener
+     *            receives the refreshed tokens
+     * @param refreshAheadMillis
+     *            how long before expiry a webauthz is refreshed at the latest
+     * @param jitterMillis
+     *            the maximum random amount by which a refresh is moved earlier
+     * @param batchIntervalMillis
+     *            how often due webauthz are refreshed
+     * @param maxBatchSize
+     *            the maximum number of webauthz refreshed per interval
+     */
+    public TokenRefresher(Key key, Listener listener, long refreshAheadMillis,
+            long jitterMillis, long batchIntervalMillis, int maxBatchSize) {
+        if (key == null) {
+            throw new NullPointerException("Key must not be null");
+        }
+        if (listener == null) {
+            throw new NullPointerException("Listener must not be null");
+        }
+        if (refreshAheadMillis < 0 || jitterMillis < 0) {
+            throw new IllegalArgumentException(
+                    "Refresh ahead and jitter must not be negative");
+        }
+        if (batchIntervalMillis <= 0 || maxBatchSize <= 0) {
+            throw new IllegalArgumentException(
+                    "Batch interval and size must be positive");
+        }
+        this.key = key;
+        this.listener = listener;
+        this.refreshAheadMillis = refreshAheadMillis;
+        this.jitterMillis = jitterMillis;
+        this.batchIntervalMillis = batchIntervalMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.executor = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "webauthz-refresher");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    public void start() {
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refreshDue();
+                } catch (RuntimeException e) {
+                    // keep the schedule going; a batch that could not be
+                    // signed is retried next time
+                }
+            }
+        }, batchIntervalMillis, batchIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Tracks the given (just issued) webauthz, taking its remaining max age
+     * as the lifetime of the refreshed ones.
+     */
+    public Ticket track(WebAuthz auth) {
+        return track(auth, auth.getMaxAgeInMillis());
+    }
+
+    /**
+     * Tracks the given webauthz, re-minting it with the given lifetime.
+     *
+     * @throws IllegalArgumentException
+     *             if the lifetime is not longer than the refresh ahead plus
+     *             the jitter, as the refreshed webauthz would be due again as
+     *             soon as they are minted, or longer than
+     *             {@link #MAX_LIFETIME_MILLIS}, or if the webauthz cannot be
+     *             encoded
+     */
+    public Ticket track(WebAuthz auth, long lifetimeMillis) {
+        if (auth.getExpiry() == 0) {
+            throw new IllegalArgumentException(
+                    "Cannot track a webauthz that never expires: " + auth);
+        }
+        if (lifetimeMillis <= refreshAheadMillis + jitterMillis) {
+            throw new IllegalArgumentException("Lifetime must be longer than "
+                    + "refresh ahead plus jitter ("
+                    + (refreshAheadMillis + jitterMillis) + "): "
+                    + lifetimeMillis);
+        }
+        if (lifetimeMillis > MAX_LIFETIME_MILLIS) {
+            throw new IllegalArgumentException("Lifetime must not be longer "
+                    + "than " + MAX_LIFETIME_MILLIS + ": " + lifetimeMillis);
+        }
+        try {
+            remint(auth, System.currentTimeMillis() + lifetimeMillis).encode(
+                    key);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Cannot track a webauthz that "
+                    + "cannot be encoded: " + auth, e);
+        }
+        final Ticket ticket = new Ticket(auth, lifetimeMillis);
+        schedule(ticket);
+        return ticket;
+    }
+
+    private static WebAuthz remint(WebAuthz previous, long expiry) {
+        return new WebAuthz(previous.getBasePath(), previous.getDescription(),
+                previous.getQuota(), previous.getAccess(), expiry,
+                previous.getUserId(), previous.getUserDescription(),
+                previous.getAdditionalPaths());
+    }
+
+    void schedule(Ticket ticket) {
+        final long jitter = jitterMillis == 0 ? 0 : ThreadLocalRandom
+                .current().nextLong(jitterMillis + 1);
+        ticket.refreshAt = ticket.current.getExpiry() - refreshAheadMillis
+                - jitter;
+        queue.add(ticket);
+    }
+
+    /**
+     * @return the number of webauthz currently tracked, including cancelled
+     *         ones that have not been dropped yet
+     */
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of tickets that have been cancelled because their
+     *         webauthz could not be re-minted
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Re-mints one batch of due webauthz right away. This is what the
+     * background thread runs at every interval. A ticket whose webauthz
+     * cannot be re-minted is cancelled (and counted by
+     * {@link #getFailedCount()}) without holding up the rest of the batch.
+     *
+     * @return the number of tokens handed to the listener
+     */
+    public int refreshDue() {
+        final List<Ticket> batch = new ArrayList<>();
+        queue.drainTo(batch, maxBatchSize);
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        final Mac mac;
+        try {
+            mac = WebAuthz.newMac(key);
+        } catch (GeneralSecurityException e) {
+            queue.addAll(batch);
+            throw new RuntimeException("Cannot refresh. Failed to initialize "
+                    + "signature", e);
+        }
+        final long now = System.currentTimeMillis();
+        int refreshed = 0;
+        for (Ticket ticket : batch) {
+            if (ticket.isCancelled()) {
+                continue;
+            }
+            final WebAuthz auth;
+            final String token;
+            try {
+                auth = remint(ticket.current, now + ticket.lifetimeMillis);
+                token = auth.encode(mac);
+            } catch (RuntimeException e) {
+                ticket.cancel();
+                failed.incrementAndGet();
+                mac.reset();
+                continue;
+            }
+            ticket.current = auth;
+            schedule(ticket);
+            refreshed++;
+            try {
+                listener.onRefresh(ticket, auth, token);
+            } catch (RuntimeException e) {
+                // the listener's problem; the ticket stays scheduled
+            }
+        }
+        return refreshed;
+    }
+
+    @Override
+    public String toString() {
+        return "TokenRefresher [refreshAheadMillis=" + refreshAheadMillis
+                + ", jitterMillis=" + jitterMillis + ", batchIntervalMillis="
+                + batchIntervalMillis + ", maxBatchSize=" + maxBatchSize
+                + ", tracked=" + size() + ", failed=" + getFailedCount()
+                + "]";
+    }
+}
@@ -2,7 +2,10 @@ package com.twitter.university.webauthz;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 import javax.xml.bind.DatatypeConverter;
 
@@ -50,6 +53,184 @@ final class Util {
         }
     }
 
+    static long readZeroOrLong(ByteBuffer in, int maxBytes) {
+        int b = (int) in.get();
+        if ((b & 0x80) == 0) {
+            return 0;
+        } else {
+            long result = ((long) (b & 0x7f) << (8 * (maxBytes - 1)));
+            for (int i = maxBytes - 1; i > 0; i--) {
+                result += ((long) (in.get() & 0xff) << (8 * (i - 1)));
+            }
+            return result;
+        }
+    }
+
+    static void writeZeroOrLong(long value, ByteBuffer out, int maxBytes) {
+        if (value == 0) {
+            out.put((byte) 0);
+        } else {
+            out.put((byte) (0x80 | (int) (value >>> (8 * (maxBytes - 1)) & 0xff)));
+            for (int i = maxBytes - 1; i > 0; i--) {
+                out.put((byte) (value >>> (8 * (i - 1)) & 0xff));
+            }
+        }
+    }
+
+    static int sizeOfZeroOrLong(long value, int maxBytes) {
+        return value == 0 ? 1 : maxBytes;
+    }
+
+    /**
+     * @return the number of bytes {@link #writeString(String, ByteBuffer)}
+     *         takes for the given string
+     */
+    static int sizeOfString(String s) {
+        int size = 2;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x01 && c < 0x80) {
+                size += 1;
+            } else if (c < 0x800) {
+                size += 2;
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(String, ByteBuffer)}.
+     */
+    static String readString(ByteBuffer in) {
+        int length = in.getShort() & 0xffff;
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String result;
+        if (in.hasArray()) {
+            result = decodeModifiedUtf8(in.array(), in.arrayOffset()
+                    + in.position(), length);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            result = decodeModifiedUtf8(bytes, 0, length);
+        }
+        return result;
+    }
+
+    /**
+     * Writes the given string the same way as
+     * {@link DataOutputStream#writeUTF(String)}: a 2-byte length followed by
+     * the string in modified UTF-8.
+     * 
+     * @throws IllegalArgumentException
+     *             if the encoded string is longer than 0xffff bytes, in which
+     *             case nothing is written
+     */
+    static void writeString(String s, ByteBuffer out) {
+        final int length = sizeOfString(s) - 2;
+        if (length > 0xffff) {
+            throw new IllegalArgumentException("String too long: " + length
+                    + " bytes");
+        }
+        out.putShort((short) length);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x01 && c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xc0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            } else {
+                out.put((byte) (0xe0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    /**
+     * Reads a string written by {@link DataOutputStream#writeUTF(String)}
+     * from a stream over the given data, going through the interner (if any).
+     */
+    static String readUTF(DataInputStream in, byte[] data,
+            StringInterner interner) throws IOException {
+        if (interner == null) {
+            return in.readUTF();
+        }
+        final int length = in.readUnsignedShort();
+        final int available = in.available();
+        if (length > available) {
+            throw new EOFException();
+        }
+        final String result = interner.intern(data, data.length - available,
+                length);
+        in.skipBytes(length);
+        return result;
+    }
+
+    static String decodeModifiedUtf8(byte[] in, int offset, int length) {
+        final char[] chars = new char[length];
+        final int end = offset + length;
+        int count = 0;
+        int i = offset;
+        while (i < end) {
+            int c = in[i] & 0xff;
+            if (c < 0x80) {
+                chars[count++] = (char) c;
+                i++;
+            } else if ((c & 0xe0) == 0xc0) {
+                if (i + 1 >= end || (in[i + 1] & 0xc0) != 0x80) {
+                    throw new IllegalArgumentException(
+                            "Malformed input around byte " + (i - offset));
+                }
+                chars[count++] = (char) (((c & 0x1f) << 6) | (in[i + 1] & 0x3f));
+                i += 2;
+            } else if ((c & 0xf0) == 0xe0) {
+                if (i + 2 >= end || (in[i + 1] & 0xc0) != 0x80
+                        || (in[i + 2] & 0xc0) != 0x80) {
+                    throw new IllegalArgumentException(
+                            "Malformed input around byte " + (i - offset));
+                }
+                chars[count++] = (char) (((c & 0x0f) << 12)
+                        | ((in[i + 1] & 0x3f) << 6) | (in[i + 2] & 0x3f));
+                i += 3;
+            } else {
+                throw new IllegalArgumentException(
+                        "Malformed input around byte " + (i - offset));
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    /**
+     * @return a 64-bit FNV-1a hash over the chars of the given string, mixed
+     *         with {@link #mix(long)}
+     */
+    static long hash64(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * @return the given value with its bits spread by the MurmurHash3
+     *         finalizer
+     */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
     static String emptyOnNull(String s) {
         return s == null ? "" : s;
     }
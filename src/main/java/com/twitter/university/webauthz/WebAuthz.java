@@ -2,9 +2,14 @@ package com.twitter.university.webauthz;
 
 import static com.twitter.university.webauthz.Util.emptyOnNull;
 import static com.twitter.university.webauthz.Util.nullOnEmpty;
+import static com.twitter.university.webauthz.Util.readString;
+import static com.twitter.university.webauthz.Util.readUTF;
 import static com.twitter.university.webauthz.Util.readZeroOrLong;
+import static com.twitter.university.webauthz.Util.sizeOfString;
+import static com.twitter.university.webauthz.Util.sizeOfZeroOrLong;
 import static com.twitter.university.webauthz.Util.urlSafeBase64Decode;
 import static com.twitter.university.webauthz.Util.urlSafeBase64Encode;
+import static com.twitter.university.webauthz.Util.writeString;
 import static com.twitter.university.webauthz.Util.writeZeroOrLong;
 
 import java.io.ByteArrayInputStream;
@@ -12,12 +17,19 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -45,19 +57,31 @@ import javax.crypto.spec.SecretKeySpec;
  * id is zero; otherwise the quota is set to the remaining 7 bits from the first
  * byte plus 7 more bytes (unsigned, network byte order)</li>
  * <li>user description - 2 bytes for the length + actual string (optional)</li>
+ * <li>additional paths - version 3 only: 2 bytes for the count, then for each
+ * path (in sorted order) 2 bytes for the number of leading characters it
+ * shares with the previous path (the base-path for the first one) + the rest
+ * of the path as a string + 1 byte for its access</li>
  * <li>padding - 0, 1, or 2 bytes for the total that's divisible by 3</li>
  * </ul>
  * 
  * Note that strings are encoded in UTF-8 and that the 2-byte string length
  * encodes the number of bytes (not necessarily characters)
  * 
+ * An already-verified webauthz can also be serialized with {@link #toBytes()}
+ * into a compact, unsigned binary form for session caches. It uses the same
+ * field encoding as above, but starts with its own 1-byte serial version and
+ * has no signature, nonce, or padding. Since it is not signed, it must only
+ * be read back from trusted storage.
+ * 
  * @author sasa
  * @verison 1.0
  */
 public final class WebAuthz {
 
     private static final int VERSION = 2;
-    private static final int[] SUPPORTED_VERSIONS = { 1, VERSION };
+    private static final int MULTI_PATH_VERSION = 3;
+    private static final int[] SUPPORTED_VERSIONS = { 1, VERSION,
+            MULTI_PATH_VERSION };
     private static final Charset CHARSET = Charset.forName("UTF-8");
     private static final String HMAC_ALGORITHM = "HmacSHA1";
 
@@ -70,7 +94,10 @@ public final class WebAuthz {
     private static final int NONCE_LENGTH = 8;
     private static final int ACTUAL_PAYLOAD_OFFSET = PAYLOAD_OFFSET
             + NONCE_LENGTH;
+    private static final int SERIAL_VERSION = 2;
     private static final SecureRandom RANDOM = new SecureRandom();
+    private static final SortedMap<String, Set<Access>> NO_PATHS = Collections
+            .unmodifiableSortedMap(new TreeMap<String, Set<Access>>());
 
     private static final long MIN_LONG = 0;
     private static final long MAX_5_LONG = 0x7f_ff_ff_ff_ffL;
@@ -94,6 +121,16 @@ public final class WebAuthz {
     }
 
     public static WebAuthz decode(String input, Key key) {
+        return decode(input, key, null);
+    }
+
+    /**
+     * Same as {@link #decode(String, Key)}, but reads the base path and
+     * descriptions through the given interner (which may be null), so that
+     * repeated values share one instance.
+     */
+    public static WebAuthz decode(String input, Key key,
+            StringInterner interner) {
         if (input == null) {
             throw new NullPointerException("Cannot parse null");
         } else {
@@ -105,8 +142,7 @@ public final class WebAuthz {
                             + "]. Unsupported version: " + version);
                 }
 
-                final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
-                mac.init(key);
+                final Mac mac = newMac(key);
                 mac.update(data, PAYLOAD_OFFSET, data.length - PAYLOAD_OFFSET);
                 final byte[] actualSignature = mac.doFinal();
                 for (int i = 0; i < actualSignature.length; i++) {
@@ -125,15 +161,34 @@ public final class WebAuthz {
                                 .readByte()));
                 final long expiry = version == 1 ? in.readLong()
                         : readZeroOrLong(in, 8);
-                final String basePath = in.readUTF();
-                final String description = in.readUTF();
+                final String basePath = readUTF(in, data, interner);
+                final String description = readUTF(in, data, interner);
                 final long quota = readZeroOrLong(in, 5);
                 final long userId = version == 1 ? in.readLong()
                         : readZeroOrLong(in, 8);
-                final String userDescription = in.readUTF();
+                final String userDescription = readUTF(in, data, interner);
+                Map<String, Set<Access>> additionalPaths = NO_PATHS;
+                if (version == MULTI_PATH_VERSION) {
+                    additionalPaths = new TreeMap<>();
+                    String previous = basePath;
+                    for (int i = in.readUnsignedShort(); i > 0; i--) {
+                        final int shared = in.readUnsignedShort();
+                        if (shared > previous.length()) {
+                            throw new IllegalArgumentException("Cannot parse ["
+                                    + input + "]. Bad shared path length: "
+                                    + shared);
+                        }
+                        final String rest = readUTF(in, data, interner);
+                        final String path = shared == 0 ? rest : previous
+                                .substring(0, shared) + rest;
+                        additionalPaths.put(path, Access.fromByte(in.readByte()));
+                        previous = path;
+                    }
+                }
                 // ignore the padding
                 return new WebAuthz(basePath, nullOnEmpty(description), quota,
-                        accessSet, expiry, userId, nullOnEmpty(userDescription));
+                        accessSet, expiry, userId,
+                        nullOnEmpty(userDescription), additionalPaths);
             } catch (InvalidKeyException | NoSuchAlgorithmException e) {
                 throw new RuntimeException("Cannot parse [" + input
                         + "]. Failed to validate signatures", e);
@@ -144,6 +199,58 @@ public final class WebAuthz {
         }
     }
 
+    public static WebAuthz fromBytes(byte[] in) {
+        if (in == null) {
+            throw new NullPointerException("Cannot read null");
+        }
+        return fromBytes(ByteBuffer.wrap(in));
+    }
+
+    public static WebAuthz fromBytes(ByteBuffer in) {
+        if (in == null) {
+            throw new NullPointerException("Cannot read null");
+        }
+        try {
+            final int version = in.get();
+            if (version != 1 && version != SERIAL_VERSION) {
+                throw new IllegalArgumentException(
+                        "Cannot read bytes. Unsupported serial version: "
+                                + version);
+            }
+            final Set<Access> accessSet = Access.fromByte(in.get());
+            final long expiry = readZeroOrLong(in, 8);
+            final String basePath = readString(in);
+            final String description = readString(in);
+            final long quota = readZeroOrLong(in, 5);
+            final long userId = readZeroOrLong(in, 8);
+            final String userDescription = readString(in);
+            Map<String, Set<Access>> additionalPaths = NO_PATHS;
+            if (version == SERIAL_VERSION) {
+                additionalPaths = new TreeMap<>();
+                String previous = basePath;
+                for (int i = in.getShort() & 0xffff; i > 0; i--) {
+                    final int shared = in.getShort() & 0xffff;
+                    if (shared > previous.length()) {
+                        throw new IllegalArgumentException(
+                                "Cannot read bytes. Bad shared path length: "
+                                        + shared);
+                    }
+                    final String rest = readString(in);
+                    final String path = shared == 0 ? rest : previous
+                            .substring(0, shared) + rest;
+                    additionalPaths.put(path, Access.fromByte(in.get()));
+                    previous = path;
+                }
+            }
+            return new WebAuthz(basePath, nullOnEmpty(description), quota,
+                    accessSet, expiry, userId, nullOnEmpty(userDescription),
+                    additionalPaths);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Cannot read bytes. Truncated",
+                    e);
+        }
+    }
+
     private static byte[] generateNonce() {
         byte[] nonce = new byte[NONCE_LENGTH];
         RANDOM.nextBytes(nonce);
@@ -158,6 +265,22 @@ public final class WebAuthz {
         return value;
     }
 
+    /**
+     * @return the number of leading characters the two paths have in common,
+     *         never splitting a surrogate pair
+     */
+    private static int sharedPrefixLength(String path1, String path2) {
+        final int max = Math.min(path1.length(), path2.length());
+        int i = 0;
+        while (i < max && path1.charAt(i) == path2.charAt(i)) {
+            i++;
+        }
+        if (i > 0 && Character.isHighSurrogate(path1.charAt(i - 1))) {
+            i--;
+        }
+        return i;
+    }
+
     private final String basePath;
     private final String description;
     private final long quota;
@@ -165,9 +288,23 @@ public final class WebAuthz {
     private final long expiry;
     private final long userId;
     private final String userDescription;
+    private final SortedMap<String, Set<Access>> additionalPaths;
+    private final PathMatcher pathMatcher;
 
     public WebAuthz(String basePath, String description, long quota,
             Set<Access> access, long expiry, long userId, String userDescription) {
+        this(basePath, description, quota, access, expiry, userId,
+                userDescription, NO_PATHS);
+    }
+
+    /**
+     * @param additionalPaths
+     *            other base paths covered by this webauthz, each with its own
+     *            access (in addition to the base path and access above)
+     */
+    public WebAuthz(String basePath, String description, long quota,
+            Set<Access> access, long expiry, long userId,
+            String userDescription, Map<String, Set<Access>> additionalPaths) {
         if (basePath == null) {
             throw new NullPointerException("Base path must not be null");
         }
@@ -181,6 +318,33 @@ public final class WebAuthz {
         this.expiry = checkLongSafe(expiry, MAX_8_LONG, "Expiry");
         this.userId = checkLongSafe(userId, MAX_8_LONG, "User ID");
         this.userDescription = userDescription;
+        if (additionalPaths == null) {
+            throw new NullPointerException(
+                    "Additional paths must not be null");
+        }
+        if (additionalPaths.size() > 0xffff) {
+            throw new IllegalArgumentException("Too many additional paths: "
+                    + additionalPaths.size());
+        }
+        if (additionalPaths.isEmpty()) {
+            this.additionalPaths = NO_PATHS;
+            this.pathMatcher = null;
+        } else {
+            final SortedMap<String, Set<Access>> paths = new TreeMap<>();
+            for (Map.Entry<String, Set<Access>> entry : additionalPaths
+                    .entrySet()) {
+                if (entry.getKey() == null || entry.getValue() == null) {
+                    throw new NullPointerException(
+                            "Additional paths must not contain null");
+                }
+                paths.put(entry.getKey(), entry.getValue());
+            }
+            this.additionalPaths = Collections.unmodifiableSortedMap(paths);
+            final Map<String, Set<Access>> allPaths = new TreeMap<>(paths);
+            allPaths.put(basePath,
+                    Access.combine(access, paths.get(basePath)));
+            this.pathMatcher = PathMatcher.compile(allPaths);
+        }
     }
 
     public String getBasePath() {
@@ -199,6 +363,21 @@ public final class WebAuthz {
         return access;
     }
 
+    public SortedMap<String, Set<Access>> getAdditionalPaths() {
+        return additionalPaths;
+    }
+
+    /**
+     * @return the combined access granted to the given request path by the
+     *         base path and any additional paths that are a prefix of it
+     */
+    public Set<Access> getAccess(String path) {
+        if (pathMatcher != null) {
+            return pathMatcher.getAccess(path);
+        }
+        return path.startsWith(basePath) ? access : Access.NONE;
+    }
+
     public long getExpiry() {
         return expiry;
     }
@@ -227,6 +406,29 @@ public final class WebAuthz {
     }
 
     public String encode(Key key) {
+        final Mac mac;
+        try {
+            mac = newMac(key);
+        } catch (InvalidKeyException | NoSuchAlgorithmException e) {
+            throw new RuntimeException("Cannot print [" + this
+                    + "]. Failed to generate signature", e);
+        }
+        return encode(mac);
+    }
+
+    static Mac newMac(Key key) throws NoSuchAlgorithmException,
+            InvalidKeyException {
+        final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+        mac.init(key);
+        return mac;
+    }
+
+    /**
+     * Same as {@link #encode(Key)}, but signs with the given initialized
+     * {@link Mac}, which is reset afterwards and can be reused (by one thread
+     * at a time) for encoding more webauthz with the same key.
+     */
+    String encode(Mac mac) {
         try {
             ByteArrayOutputStream payloadOut = new ByteArrayOutputStream(256);
             payloadOut.write(generateNonce());
@@ -238,12 +440,23 @@ public final class WebAuthz {
             writeZeroOrLong(this.getQuota(), dataPayloadOut, 5);
             writeZeroOrLong(this.getUserId(), dataPayloadOut, 8);
             dataPayloadOut.writeUTF(emptyOnNull(this.getUserDescription()));
+            if (!additionalPaths.isEmpty()) {
+                dataPayloadOut.writeShort(additionalPaths.size());
+                String previous = this.getBasePath();
+                for (Map.Entry<String, Set<Access>> entry : additionalPaths
+                        .entrySet()) {
+                    final String path = entry.getKey();
+                    final int shared = sharedPrefixLength(previous, path);
+                    dataPayloadOut.writeShort(shared);
+                    dataPayloadOut.writeUTF(path.substring(shared));
+                    dataPayloadOut.writeByte(Access.toByte(entry.getValue()));
+                    previous = path;
+                }
+            }
             while ((payloadOut.size() + PAYLOAD_OFFSET) % 3 != 0) {
                 payloadOut.write(0); // padding
             }
             byte[] payload = payloadOut.toByteArray();
-            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
-            mac.init(key);
             mac.update(payload);
             byte[] signature = mac.doFinal();
             if (signature.length != SIGNATURE_LENGTH) {
@@ -252,25 +465,77 @@ public final class WebAuthz {
                         + signature.length);
             }
             byte[] data = new byte[PAYLOAD_OFFSET + payload.length];
-            data[0] = VERSION;
+            data[0] = (byte) (additionalPaths.isEmpty() ? VERSION
+                    : MULTI_PATH_VERSION);
             System.arraycopy(signature, 0, data, SIGNATURE_OFFSET,
                     signature.length);
             System.arraycopy(payload, 0, data, PAYLOAD_OFFSET, payload.length);
             return urlSafeBase64Encode(data);
-        } catch (InvalidKeyException | NoSuchAlgorithmException e) {
-            throw new RuntimeException("Cannot print [" + this
-                    + "]. Failed to generate signature", e);
         } catch (IOException e) {
             throw new RuntimeException("Cannot print [" + this
                     + "]. Failed to write data", e);
         }
     }
 
+    public byte[] toBytes() {
+        final byte[] out = new byte[sizeOfBytes()];
+        toBytes(ByteBuffer.wrap(out));
+        return out;
+    }
+
+    /**
+     * @return the number of bytes {@link #toBytes(ByteBuffer)} writes
+     */
+    int sizeOfBytes() {
+        int size = 2 + sizeOfZeroOrLong(this.getExpiry(), 8)
+                + sizeOfString(this.getBasePath())
+                + sizeOfString(emptyOnNull(this.getDescription()))
+                + sizeOfZeroOrLong(this.getQuota(), 5)
+                + sizeOfZeroOrLong(this.getUserId(), 8)
+                + sizeOfString(emptyOnNull(this.getUserDescription())) + 2;
+        String previous = this.getBasePath();
+        for (String path : additionalPaths.keySet()) {
+            size += 2 + sizeOfString(path.substring(sharedPrefixLength(
+                    previous, path))) + 1;
+            previous = path;
+        }
+        return size;
+    }
+
+    /**
+     * Writes this webauthz at the current position of the given buffer.
+     * 
+     * @throws BufferOverflowException
+     *             if the buffer does not have enough space remaining, in which
+     *             case its position is undefined
+     */
+    public void toBytes(ByteBuffer out) {
+        out.put((byte) SERIAL_VERSION);
+        out.put(Access.toByte(this.getAccess()));
+        writeZeroOrLong(this.getExpiry(), out, 8);
+        writeString(this.getBasePath(), out);
+        writeString(emptyOnNull(this.getDescription()), out);
+        writeZeroOrLong(this.getQuota(), out, 5);
+        writeZeroOrLong(this.getUserId(), out, 8);
+        writeString(emptyOnNull(this.getUserDescription()), out);
+        out.putShort((short) additionalPaths.size());
+        String previous = this.getBasePath();
+        for (Map.Entry<String, Set<Access>> entry : additionalPaths.entrySet()) {
+            final String path = entry.getKey();
+            final int shared = sharedPrefixLength(previous, path);
+            out.putShort((short) shared);
+            writeString(path.substring(shared), out);
+            out.put(Access.toByte(entry.getValue()));
+            previous = path;
+        }
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
         int result = 1;
         result = prime * result + ((access == null) ? 0 : access.hashCode());
+        result = prime * result + additionalPaths.hashCode();
         result = prime * result
                 + ((basePath == null) ? 0 : basePath.hashCode());
         result = prime * result
@@ -295,6 +560,9 @@ public final class WebAuthz {
             return false;
         }
         WebAuthz other = (WebAuthz) obj;
+        if (!additionalPaths.equals(other.additionalPaths)) {
+            return false;
+        }
         if (access == null) {
             if (other.access != null) {
                 return false;
@@ -340,6 +608,7 @@ public final class WebAuthz {
         return "WebAuthz [basePath=" + basePath + ", description="
                 + description + ", quota=" + quota + ", access=" + access
                 + ", expiry=" + expiry + ", userId=" + userId
-                + ", userDescription=" + userDescription + "]";
+                + ", userDescription=" + userDescription
+                + ", additionalPaths=" + additionalPaths + "]";
     }
 }
@@ -1,6 +1,8 @@
 package com.twitter.university.webauthz;
 
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 public class WebAuthzBuilder {
 
@@ -11,6 +13,7 @@ public class WebAuthzBuilder {
 	private final long expiry;
 	private long userId = 0;
 	private String userDescription = null;
+	private final Map<String, Set<Access>> additionalPaths = new TreeMap<>();
 
 	public WebAuthzBuilder(Set<Access> access, long expiry) {
 		this.access = access;
@@ -42,8 +45,13 @@ public class WebAuthzBuilder {
 		return this;
 	}
 
+	public WebAuthzBuilder withAdditionalPath(String path, Set<Access> access) {
+		this.additionalPaths.put(path, access);
+		return this;
+	}
+
 	public WebAuthz build() {
 		return new WebAuthz(basePath, description, quota, access, expiry,
-				userId, userDescription);
+				userId, userDescription, additionalPaths);
 	}
 }
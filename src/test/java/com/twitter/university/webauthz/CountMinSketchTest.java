@@ -0,0 +1,57 @@
+package com.twitter.university.webauthz;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CountMinSketchTest {
+
+    @Test
+    public void testEstimateUnseen() {
+        CountMinSketch sketch = new CountMinSketch(4, 1024);
+        Assert.assertEquals(0, sketch.estimate("/class/1/"));
+    }
+
+    @Test
+    public void testEstimateNeverUnderCounts() {
+        CountMinSketch sketch = new CountMinSketch(4, 64);
+        for (int i = 0; i < 1000; i++) {
+            sketch.add("/class/" + (i % 100) + "/");
+        }
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(sketch.estimate("/class/" + i + "/") >= 10);
+        }
+    }
+
+    @Test
+    public void testEstimateExactWithoutCollisions() {
+        CountMinSketch sketch = new CountMinSketch(4, 1 << 16);
+        sketch.add(123L, 5);
+        sketch.add(456L);
+        Assert.assertEquals(5, sketch.estimate(123L));
+        Assert.assertEquals(1, sketch.estimate(456L));
+    }
+
+    @Test
+    public void testClear() {
+        CountMinSketch sketch = new CountMinSketch(2, 16);
+        sketch.add("/");
+        sketch.clear();
+        Assert.assertEquals(0, sketch.estimate("/"));
+    }
+
+    @Test
+    public void testEqualHashCodesDoNotCollide() {
+        CountMinSketch sketch = new CountMinSketch(4, 1 << 14);
+        Assert.assertEquals(Long.valueOf(1).hashCode(),
+                Long.valueOf(1L << 32).hashCode());
+        for (int i = 0; i < 1000; i++) {
+            sketch.add(1L << 32);
+            sketch.add("Aa");
+        }
+        Assert.assertEquals("Aa".hashCode(), "BB".hashCode());
+        Assert.assertEquals(1000, sketch.estimate(1L << 32));
+        Assert.assertEquals(0, sketch.estimate(1L));
+        Assert.assertEquals(1000, sketch.estimate("Aa"));
+        Assert.assertEquals(0, sketch.estimate("BB"));
+    }
+}
@@ -0,0 +1,88 @@
+package com.twitter.university.webauthz;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HeavyHittersTest {
+
+    private static WebAuthz auth(String basePath, long userId) {
+        return new WebAuthz(basePath, null, 0, Access.READ_ONLY, 0, userId,
+                null);
+    }
+
+    @Test
+    public void testRecordReturnsAuth() {
+        WebAuthz auth = auth("/a/", 1);
+        Assert.assertSame(auth, new HeavyHitters().record(auth));
+    }
+
+    @Test
+    public void testTopBasePaths() {
+        HeavyHitters heavyHitters = new HeavyHitters();
+        for (int i = 0; i < 5; i++) {
+            heavyHitters.record(auth("/hot/", 1));
+        }
+        heavyHitters.record(auth("/cold/", 2));
+        List<SpaceSaving.Entry<String>> top = heavyHitters.getTopBasePaths(1);
+        Assert.assertEquals(1, top.size());
+        Assert.assertEquals("/hot/", top.get(0).getItem());
+        Assert.assertEquals(5, top.get(0).getCount());
+        Assert.assertEquals(2, heavyHitters.getTopBasePaths(10).size());
+    }
+
+    @Test
+    public void testTopUserIds() {
+        HeavyHitters heavyHitters = new HeavyHitters();
+        for (int i = 0; i < 3; i++) {
+            heavyHitters.record(auth("/a/", 42));
+        }
+        heavyHitters.record(auth("/a/", 7));
+        List<SpaceSaving.Entry<Long>> top = heavyHitters.getTopUserIds(10);
+        Assert.assertEquals(2, top.size());
+        Assert.assertEquals(Long.valueOf(42), top.get(0).getItem());
+        Assert.assertEquals(3, top.get(0).getCount());
+    }
+
+    @Test
+    public void testEstimates() {
+        HeavyHitters heavyHitters = new HeavyHitters();
+        for (int i = 0; i < 4; i++) {
+            heavyHitters.record(auth("/a/", 42));
+        }
+        Assert.assertEquals(4, heavyHitters.estimateBasePath("/a/"));
+        Assert.assertEquals(0, heavyHitters.estimateBasePath("/b/"));
+        Assert.assertEquals(4, heavyHitters.estimateUserId(42));
+        Assert.assertEquals(0, heavyHitters.estimateUserId(7));
+    }
+
+    @Test
+    public void testLargeUserIdsDoNotCollide() {
+        HeavyHitters heavyHitters = new HeavyHitters();
+        for (int i = 0; i < 1000; i++) {
+            heavyHitters.record(auth("/a/", 1L << 32));
+        }
+        Assert.assertEquals(1000, heavyHitters.estimateUserId(1L << 32));
+        Assert.assertEquals(0, heavyHitters.estimateUserId(1));
+    }
+
+    @Test
+    public void testZeroUserIdIsNotCounted() {
+        HeavyHitters heavyHitters = new HeavyHitters();
+        heavyHitters.record(auth("/a/", 0));
+        Assert.assertTrue(heavyHitters.getTopUserIds(10).isEmpty());
+        Assert.assertEquals(0, heavyHitters.estimateUserId(0));
+        Assert.assertEquals(1, heavyHitters.estimateBasePath("/a/"));
+    }
+
+    @Test
+    public void testClear() {
+        HeavyHitters heavyHitters = new HeavyHitters();
+        heavyHitters.record(auth("/a/", 1));
+        heavyHitters.clear();
+        Assert.assertTrue(heavyHitters.getTopBasePaths(10).isEmpty());
+        Assert.assertTrue(heavyHitters.getTopUserIds(10).isEmpty());
+        Assert.assertEquals(0, heavyHitters.estimateBasePath("/a/"));
+    }
+}
@@ -0,0 +1,52 @@
+package com.twitter.university.webauthz;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getTotalCount());
+        Assert.assertEquals(0, histogram.getMin());
+        Assert.assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(1, histogram.getMin());
+        Assert.assertEquals(50, histogram.getValueAtPercentile(50));
+        Assert.assertEquals(99, histogram.getValueAtPercentile(99));
+        Assert.assertEquals(100, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testRelativeError() {
+        long[] values = { 128, 1000, 123456, 987654321, Long.MAX_VALUE / 3,
+                Long.MAX_VALUE };
+        for (long value : values) {
+            int index = LatencyHistogram.indexOf(value);
+            long highest = LatencyHistogram.highestValueAt(index);
+            Assert.assertTrue(highest >= value);
+            Assert.assertTrue((highest - value) / (double) value < 0.016);
+        }
+    }
+
+    @Test
+    public void testAdd() {
+        LatencyHistogram h1 = new LatencyHistogram();
+        LatencyHistogram h2 = new LatencyHistogram();
+        h1.record(10);
+        h2.record(1000000);
+        h1.add(h2);
+        Assert.assertEquals(2, h1.getTotalCount());
+        Assert.assertEquals(10, h1.getMin());
+        Assert.assertEquals(1000000, h1.getMax());
+        Assert.assertEquals(1000000, h1.getValueAtPercentile(100));
+    }
+}
@@ -0,0 +1,70 @@
+package com.twitter.university.webauthz;
+
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class LoadGeneratorTest {
+
+    private static final LoadGenerator GENERATOR = new LoadGenerator(
+            LoadGenerator.parseOptions(new String[] { "--tokens=10" }));
+
+    private static void assertOutcome(LoadGenerator.Outcome expected,
+            LoadGenerator.Kind kind) {
+        Random random = new Random(1);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(kind + " #" + i, expected,
+                    GENERATOR.verify(LoadGenerator.generate(kind, i, random)));
+        }
+    }
+
+    @Test
+    public void testGeneratedTokens() {
+        assertOutcome(LoadGenerator.Outcome.ACCEPTED, LoadGenerator.Kind.VALID);
+        assertOutcome(LoadGenerator.Outcome.ACCEPTED, LoadGenerator.Kind.V1);
+        assertOutcome(LoadGenerator.Outcome.EXPIRED, LoadGenerator.Kind.EXPIRED);
+        assertOutcome(LoadGenerator.Outcome.REJECTED, LoadGenerator.Kind.BADSIG);
+        assertOutcome(LoadGenerator.Outcome.REJECTED,
+                LoadGenerator.Kind.MALFORMED);
+    }
+
+    @Test
+    public void testZipfCdf() {
+        double[] cdf = LoadGenerator.zipfCdf(3, 1.0);
+        Assert.assertEquals(6.0 / 11, cdf[0], 1e-9);
+        Assert.assertEquals(1.0, cdf[2], 1e-9);
+    }
+
+    @Test
+    public void testParseMixSkipsZeroWeights() {
+        Assert.assertEquals(
+                Collections.singleton(LoadGenerator.Kind.VALID),
+                LoadGenerator.parseMix("valid:1,badsig:0").keySet());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseMixUnknownKind() {
+        LoadGenerator.parseMix("valid:1,bogus:2");
+    }
+
+    @Test
+    public void testGcPauses() throws InterruptedException {
+        LoadGenerator.GcPauses gcPauses = new LoadGenerator.GcPauses();
+        gcPauses.start();
+        try {
+            Assume.assumeTrue(gcPauses.isSupported());
+            System.gc();
+            // notifications are delivered asynchronously
+            for (int i = 0; i < 100
+                    && gcPauses.getHistogram().getTotalCount() == 0; i++) {
+                Thread.sleep(50);
+            }
+        } finally {
+            gcPauses.stop();
+        }
+        Assert.assertTrue(gcPauses.getHistogram().getTotalCount() > 0);
+    }
+}
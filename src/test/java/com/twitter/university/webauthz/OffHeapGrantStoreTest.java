@@ -0,0 +1,204 @@
+package com.twitter.university.webauthz;
+
+import java.security.Key;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OffHeapGrantStoreTest {
+
+    private static final Key KEY = WebAuthz.generateKey("abcd1234");
+    private static final long EXPIRY = System.currentTimeMillis() + 60 * 60
+            * 1000;
+
+    private static WebAuthz grant(int i, long expiry) {
+        return new WebAuthzBuilder(Access.READ_ONLY, expiry)
+                .withBasePath("/class/" + i + "/files/")
+                .withDescription("Class " + i).withQuota(1000 + i)
+                .witUserId(i).build();
+    }
+
+    @Test
+    public void testPutGet() {
+        OffHeapGrantStore store = new OffHeapGrantStore(1 << 20);
+        WebAuthz auth = grant(1, EXPIRY);
+        long key = store.keyOf(auth.encode(KEY));
+        Assert.assertTrue(store.put(key, auth));
+        Assert.assertEquals(auth, store.get(key));
+        Assert.assertEquals(EXPIRY, store.getExpiry(key));
+        Assert.assertEquals(1001, store.getQuota(key));
+        Assert.assertEquals(1, store.getUserId(key));
+        Assert.assertEquals(Access.READ_ONLY, store.getAccess(key));
+        Assert.assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testMissing() {
+        OffHeapGrantStore store = new OffHeapGrantStore(1 << 20);
+        Assert.assertNull(store.get(42));
+        Assert.assertFalse(store.contains(42));
+        Assert.assertEquals(-1, store.getExpiry(42));
+        Assert.assertEquals(Access.NONE, store.getAccess(42));
+        Assert.assertEquals(Access.NONE, store.getAccess(42, "/"));
+        Assert.assertFalse(store.remove(42));
+    }
+
+    @Test
+    public void testGetAccessForPath() {
+        OffHeapGrantStore store = new OffHeapGrantStore(1 << 20);
+        store.put(1, grant(1, EXPIRY));
+        store.put(2, new WebAuthzBuilder(Access.READ_ONLY, EXPIRY)
+                .withBasePath("/klass/é/")
+                .withAdditionalPath("/uploads/", Access.WRITE_ONLY).build());
+        Assert.assertEquals(Access.READ_ONLY,
+                store.getAccess(1, "/class/1/files/a.txt"));
+        Assert.assertEquals(Access.NONE, store.getAccess(1, "/class/1/"));
+        Assert.assertEquals(Access.READ_ONLY,
+                store.getAccess(2, "/klass/é/a.txt"));
+        Assert.assertEquals(Access.WRITE_ONLY,
+                store.getAccess(2, "/uploads/a.txt"));
+    }
+
+    @Test
+    public void testGetAccessForNonAsciiPath() {
+        OffHeapGrantStore store = new OffHeapGrantStore(1 << 20);
+        store.put(1, new WebAuthzBuilder(Access.READ_ONLY, EXPIRY)
+                .withBasePath("/café").build());
+        Assert.assertEquals(Access.READ_ONLY, store.getAccess(1, "/café"));
+        Assert.assertEquals(Access.READ_ONLY,
+                store.getAccess(1, "/café/a.txt"));
+        Assert.assertEquals(Access.NONE, store.getAccess(1, "/caf"));
+        Assert.assertEquals(Access.NONE, store.getAccess(1, "/cafe"));
+    }
+
+    @Test
+    public void testReplaceAndRemove() {
+        OffHeapGrantStore store = new OffHeapGrantStore(1 << 20);
+        store.put(7, grant(1, EXPIRY));
+        store.put(7, grant(2, EXPIRY));
+        Assert.assertEquals(grant(2, EXPIRY), store.get(7));
+        Assert.assertEquals(1, store.size());
+        Assert.assertTrue(store.remove(7));
+        Assert.assertNull(store.get(7));
+        Assert.assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testExpiredIsNotReturned() {
+        OffHeapGrantStore store = new OffHeapGrantStore(1 << 20);
+        store.put(1, grant(1, System.currentTimeMillis() - 1000));
+        Assert.assertNull(store.get(1));
+        Assert.assertEquals(-1, store.getUserId(1));
+        Assert.assertEquals(1, store.evictExpired());
+        Assert.assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testHardCapReusesExpiredSlots() {
+        OffHeapGrantStore store = new OffHeapGrantStore(256 * 100, 256);
+        Assert.assertEquals(100, store.getCapacity());
+        for (int i = 0; i < 100; i++) {
+            long expiry = i % 2 == 0 ? System.currentTimeMillis() - 1000
+                    : EXPIRY;
+            Assert.assertTrue(store.put(i, grant(i, expiry)));
+        }
+        for (int i = 100; i < 150; i++) {
+            Assert.assertTrue(store.put(i, grant(i, EXPIRY)));
+        }
+        Assert.assertFalse(store.put(150, grant(150, EXPIRY)));
+        for (int i = 1; i < 150; i += 2) {
+            Assert.assertEquals(grant(i, EXPIRY), store.get(i));
+        }
+        for (int i = 100; i < 150; i++) {
+            Assert.assertEquals(grant(i, EXPIRY), store.get(i));
+        }
+        Assert.assertTrue(store.getAllocatedBytes() <= 256 * 100);
+    }
+
+    @Test
+    public void testSweepIsBounded() {
+        OffHeapGrantStore store = new OffHeapGrantStore(256 * 200, 256);
+        for (int i = 0; i < 200; i++) {
+            long expiry = i < 150 ? EXPIRY : System.currentTimeMillis() - 1000;
+            Assert.assertTrue(store.put(i, grant(i, expiry)));
+        }
+        // each put sweeps the next 64 slots, picking up where the last stopped
+        Assert.assertFalse(store.put(200, grant(200, EXPIRY)));
+        Assert.assertFalse(store.put(201, grant(201, EXPIRY)));
+        Assert.assertTrue(store.put(202, grant(202, EXPIRY)));
+        Assert.assertEquals(49, store.evictExpired());
+        Assert.assertTrue(store.put(203, grant(203, EXPIRY)));
+    }
+
+    @Test
+    public void testManyKeys() {
+        OffHeapGrantStore store = new OffHeapGrantStore(256 * 25000, 256);
+        for (int i = 0; i < 20000; i++) {
+            Assert.assertTrue(store.put(i * 7919L, grant(i, EXPIRY)));
+        }
+        for (int i = 0; i < 20000; i += 2) {
+            Assert.assertTrue(store.remove(i * 7919L));
+        }
+        for (int i = 1; i < 20000; i += 2) {
+            Assert.assertEquals(i, store.getUserId(i * 7919L));
+        }
+        Assert.assertEquals(10000, store.size());
+    }
+
+    @Test
+    public void testTooLarge() {
+        OffHeapGrantStore store = new OffHeapGrantStore(64 * 10, 64);
+        Assert.assertFalse(store.put(1, grant(1, EXPIRY)));
+        Assert.assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testTooLargeKeepsExisting() {
+        OffHeapGrantStore store = new OffHeapGrantStore(256 * 2, 256);
+        StringBuilder basePath = new StringBuilder("/");
+        while (basePath.length() <= 0xffff) {
+            basePath.append("0123456789abcdef");
+        }
+        WebAuthz huge = new WebAuthzBuilder(Access.READ_ONLY, EXPIRY)
+                .withBasePath(basePath.toString()).build();
+        Assert.assertTrue(store.put(1, grant(1, EXPIRY)));
+        Assert.assertFalse(store.put(1, huge));
+        Assert.assertFalse(store.put(2, huge));
+        Assert.assertEquals(grant(1, EXPIRY), store.get(1));
+        Assert.assertTrue(store.put(2, grant(2, EXPIRY)));
+        Assert.assertEquals(2, store.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSlotSizeTooSmall() {
+        new OffHeapGrantStore(1 << 20, 36);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSlotSizeTooLarge() {
+        new OffHeapGrantStore(1 << 20, 36 + 0x10000);
+    }
+
+    @Test
+    public void testLargestSlotSize() {
+        OffHeapGrantStore store = new OffHeapGrantStore(1 << 20, 36 + 0xffff);
+        StringBuilder description = new StringBuilder();
+        while (description.length() < 0xff00) {
+            description.append("0123456789abcdef");
+        }
+        WebAuthz auth = new WebAuthzBuilder(Access.READ_ONLY, EXPIRY)
+                .withBasePath("/a/").withDescription(description.toString())
+                .build();
+        Assert.assertTrue(store.put(1, auth));
+        Assert.assertEquals(auth, store.get(1));
+    }
+
+    @Test
+    public void testKeyOf() {
+        OffHeapGrantStore store = new OffHeapGrantStore(1 << 20);
+        String token = grant(1, EXPIRY).encode(KEY);
+        Assert.assertEquals(store.keyOf(token), store.keyOf(token));
+        Assert.assertFalse(store.keyOf(token) == store.keyOf(token + "A"));
+        Assert.assertFalse(store.keyOf("") == store.keyOf("\0"));
+    }
+}
@@ -0,0 +1,77 @@
+package com.twitter.university.webauthz;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PathMatcherTest {
+
+    private static PathMatcher compile(Object... pathsAndAccess) {
+        Map<String, Set<Access>> paths = new TreeMap<>();
+        for (int i = 0; i < pathsAndAccess.length; i += 2) {
+            @SuppressWarnings("unchecked")
+            Set<Access> access = (Set<Access>) pathsAndAccess[i + 1];
+            paths.put((String) pathsAndAccess[i], access);
+        }
+        return PathMatcher.compile(paths);
+    }
+
+    @Test
+    public void testNoMatch() {
+        PathMatcher matcher = compile("/class/1/", Access.READ_ONLY);
+        Assert.assertEquals(Access.NONE, matcher.getAccess("/class/2/x"));
+        Assert.assertEquals(Access.NONE, matcher.getAccess("/class/"));
+        Assert.assertEquals(Access.NONE, matcher.getAccess(""));
+    }
+
+    @Test
+    public void testPrefixMatch() {
+        PathMatcher matcher = compile("/class/1/", Access.READ_ONLY,
+                "/class/2/", Access.WRITE_ONLY);
+        Assert.assertEquals(Access.READ_ONLY, matcher.getAccess("/class/1/"));
+        Assert.assertEquals(Access.READ_ONLY,
+                matcher.getAccess("/class/1/files/a.txt"));
+        Assert.assertEquals(Access.WRITE_ONLY,
+                matcher.getAccess("/class/2/files/a.txt"));
+    }
+
+    @Test
+    public void testNestedPathsCombine() {
+        PathMatcher matcher = compile("/class/", Access.READ_ONLY,
+                "/class/1/uploads/", Access.WRITE_ONLY);
+        Assert.assertEquals(Access.READ_ONLY, matcher.getAccess("/class/1/"));
+        Assert.assertEquals(Access.READ_WRITE,
+                matcher.getAccess("/class/1/uploads/a.txt"));
+    }
+
+    @Test
+    public void testSharedPrefixesShareNodes() {
+        PathMatcher matcher = compile("/class/1/", Access.READ_ONLY,
+                "/class/2/", Access.READ_ONLY);
+        Assert.assertEquals(1 + "/class/1/".length() + 2,
+                matcher.getNodeCount());
+    }
+
+    @Test
+    public void testManyDivergingPaths() {
+        Map<String, Set<Access>> paths = new TreeMap<>();
+        for (int i = 20; i > 0; i--) {
+            paths.put("/class/" + i + "/", i % 2 == 0 ? Access.READ_ONLY
+                    : Access.WRITE_ONLY);
+        }
+        paths.put("/class/x", Access.READ_WRITE);
+        PathMatcher matcher = PathMatcher.compile(paths);
+        for (int i = 1; i <= 20; i++) {
+            Assert.assertEquals(i % 2 == 0 ? Access.READ_ONLY
+                    : Access.WRITE_ONLY, matcher.getAccess("/class/" + i
+                    + "/files/a.txt"));
+        }
+        Assert.assertEquals(Access.READ_WRITE, matcher.getAccess("/class/xy"));
+        Assert.assertEquals(Access.NONE, matcher.getAccess("/class/21/"));
+        Assert.assertEquals(Access.NONE, matcher.getAccess("/class/0/"));
+        Assert.assertEquals(Access.NONE, matcher.getAccess("/class/"));
+    }
+}
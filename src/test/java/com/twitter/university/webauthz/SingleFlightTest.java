@@ -0,0 +1,98 @@
+package com.twitter.university.webauthz;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+    @Test
+    public void testSequentialCallsEachExecute() {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        final AtomicInteger calls = new AtomicInteger();
+        Callable<String> computation = new Callable<String>() {
+            @Override
+            public String call() {
+                return "result-" + calls.incrementAndGet();
+            }
+        };
+        Assert.assertEquals("result-1", singleFlight.execute("a", computation));
+        Assert.assertEquals("result-2", singleFlight.execute("a", computation));
+        Assert.assertEquals(2, singleFlight.getExecutedCount());
+        Assert.assertEquals(0, singleFlight.size());
+    }
+
+    @Test
+    public void testConcurrentCallsShareOneExecution() throws Exception {
+        final SingleFlight<String, Integer> singleFlight = new SingleFlight<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<Integer> computation = new Callable<Integer>() {
+            @Override
+            public Integer call() throws InterruptedException {
+                started.countDown();
+                release.await();
+                return calls.incrementAndGet();
+            }
+        };
+        final Integer[] results = new Integer[8];
+        Thread[] threads = new Thread[results.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int i = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    results[i] = singleFlight.execute("token", computation);
+                }
+            };
+            threads[t].start();
+            if (t == 0) {
+                Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            }
+        }
+        while (singleFlight.getSharedCount() < threads.length - 1) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Integer result : results) {
+            Assert.assertEquals(Integer.valueOf(1), result);
+        }
+        Assert.assertEquals(1, singleFlight.getExecutedCount());
+        Assert.assertEquals(1, calls.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRuntimeExceptionIsRethrown() {
+        new SingleFlight<String, String>().execute("a", new Callable<String>() {
+            @Override
+            public String call() {
+                throw new IllegalArgumentException("bad token");
+            }
+        });
+    }
+
+    @Test
+    public void testCheckedExceptionIsWrapped() {
+        try {
+            new SingleFlight<String, String>().execute("a",
+                    new Callable<String>() {
+                        @Override
+                        public String call() throws IOException {
+                            throw new IOException("boom");
+                        }
+                    });
+            Assert.fail();
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
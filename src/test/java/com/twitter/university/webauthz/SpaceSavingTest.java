@@ -0,0 +1,95 @@
+package com.twitter.university.webauthz;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SpaceSavingTest {
+
+    @Test
+    public void testTopWithinCapacity() {
+        SpaceSaving<String> sketch = new SpaceSaving<>(10, 1);
+        for (int i = 0; i < 3; i++) {
+            sketch.offer("/a/");
+        }
+        sketch.offer("/b/");
+        List<SpaceSaving.Entry<String>> top = sketch.top(5);
+        Assert.assertEquals(2, top.size());
+        Assert.assertEquals("/a/", top.get(0).getItem());
+        Assert.assertEquals(3, top.get(0).getCount());
+        Assert.assertEquals(0, top.get(0).getError());
+        Assert.assertEquals("/b/", top.get(1).getItem());
+    }
+
+    @Test
+    public void testHeavyHitterSurvivesLongTail() {
+        SpaceSaving<String> sketch = new SpaceSaving<>(8, 1);
+        for (int i = 0; i < 1000; i++) {
+            sketch.offer("/hot/");
+            sketch.offer("/cold/" + i + "/");
+        }
+        List<SpaceSaving.Entry<String>> top = sketch.top(1);
+        Assert.assertEquals("/hot/", top.get(0).getItem());
+        Assert.assertTrue(top.get(0).getCount() >= 1000);
+    }
+
+    @Test
+    public void testMergesStripes() throws InterruptedException {
+        final SpaceSaving<Long> sketch = new SpaceSaving<>(4, 4);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        sketch.offer(42L);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(400, sketch.top(1).get(0).getCount());
+    }
+
+    @Test
+    public void testMergeNeverUnderCounts() throws InterruptedException {
+        final SpaceSaving<String> sketch = new SpaceSaving<>(2, 2);
+        // stripes are picked by thread id, so these two threads may land on
+        // the same or on different stripes; the bound must hold either way
+        Thread first = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 10; i++) {
+                    sketch.offer("/hot/");
+                }
+            }
+        };
+        first.start();
+        first.join();
+        Thread second = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 5; i++) {
+                    sketch.offer("/a/");
+                    sketch.offer("/b/");
+                }
+                for (int i = 0; i < 3; i++) {
+                    sketch.offer("/hot/");
+                }
+            }
+        };
+        second.start();
+        second.join();
+        for (SpaceSaving.Entry<String> entry : sketch.top(10)) {
+            if (entry.getItem().equals("/hot/")) {
+                Assert.assertTrue(entry.getCount() >= 13);
+                Assert.assertTrue(entry.getCount() - entry.getError() <= 13);
+            }
+        }
+        Assert.assertEquals("/hot/", sketch.top(1).get(0).getItem());
+    }
+}
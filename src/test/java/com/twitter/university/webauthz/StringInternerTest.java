@@ -0,0 +1,77 @@
+package com.twitter.university.webauthz;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StringInternerTest {
+
+    private static byte[] modifiedUtf8(String s) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new DataOutputStream(out).writeUTF(s);
+        byte[] bytes = out.toByteArray();
+        return Arrays.copyOfRange(bytes, 2, bytes.length);
+    }
+
+    private static String intern(StringInterner interner, String s)
+            throws IOException {
+        byte[] bytes = modifiedUtf8(s);
+        return interner.intern(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testInternReturnsSameInstance() throws IOException {
+        StringInterner interner = new StringInterner();
+        String first = intern(interner, "/class/12345/files/");
+        String second = intern(interner, "/class/12345/files/");
+        Assert.assertEquals("/class/12345/files/", first);
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, interner.getHits());
+        Assert.assertEquals(1, interner.getMisses());
+        Assert.assertEquals(0.5, interner.getHitRate(), 0);
+        Assert.assertTrue(interner.getEstimatedBytesSaved() > 0);
+    }
+
+    @Test
+    public void testInternNonAscii() throws IOException {
+        StringInterner interner = new StringInterner();
+        String s = "Jörg 中文 \0 😀";
+        Assert.assertEquals(s, intern(interner, s));
+        Assert.assertEquals(s, intern(interner, s));
+    }
+
+    @Test
+    public void testInternWithOffset() throws IOException {
+        StringInterner interner = new StringInterner();
+        byte[] bytes = modifiedUtf8("xx/a/yy");
+        Assert.assertEquals("/a/", interner.intern(bytes, 2, 3));
+    }
+
+    @Test
+    public void testTooLongIsNotInterned() throws IOException {
+        StringInterner interner = new StringInterner(16, 4);
+        String first = intern(interner, "/too/long/");
+        String second = intern(interner, "/too/long/");
+        Assert.assertEquals(first, second);
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(0, interner.getHits());
+    }
+
+    @Test
+    public void testCollisionReplacesSlot() throws IOException {
+        StringInterner interner = new StringInterner(1, 256);
+        Assert.assertEquals("/a/", intern(interner, "/a/"));
+        Assert.assertEquals("/b/", intern(interner, "/b/"));
+        Assert.assertEquals("/a/", intern(interner, "/a/"));
+        Assert.assertEquals(0, interner.getHits());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformed() {
+        new StringInterner().intern(new byte[] { (byte) 0xe0, 0x20 }, 0, 2);
+    }
+}
@@ -0,0 +1,183 @@
+package com.twitter.university.webauthz;
+
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TokenRefresherTest {
+
+    private static final Key KEY = WebAuthz.generateKey("abcd1234");
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private static final class Recorder implements TokenRefresher.Listener {
+        final List<String> tokens = Collections
+                .synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void onRefresh(TokenRefresher.Ticket ticket, WebAuthz auth,
+                String token) {
+            tokens.add(token);
+        }
+    }
+
+    private static WebAuthz auth(long expiry) {
+        return new WebAuthzBuilder(Access.READ_ONLY, expiry)
+                .withBasePath("/class/1/").witUserId(42)
+                .withAdditionalPath("/public/", Access.READ_ONLY).build();
+    }
+
+    @Test
+    public void testRefreshDue() {
+        Recorder recorder = new Recorder();
+        TokenRefresher refresher = new TokenRefresher(KEY, recorder, HOUR, 0,
+                1000, 100);
+        long before = System.currentTimeMillis();
+        WebAuthz original = auth(before + 1000);
+        TokenRefresher.Ticket ticket = refresher.track(original, 2 * HOUR);
+        refresher.track(auth(before + 3 * HOUR), 3 * HOUR);
+        Assert.assertEquals(1, refresher.refreshDue());
+        Assert.assertEquals(1, recorder.tokens.size());
+        WebAuthz refreshed = WebAuthz.decode(recorder.tokens.get(0), KEY);
+        Assert.assertEquals(refreshed, ticket.getCurrent());
+        Assert.assertEquals(original.getAdditionalPaths(),
+                refreshed.getAdditionalPaths());
+        Assert.assertEquals(original.getUserId(), refreshed.getUserId());
+        Assert.assertTrue(refreshed.getExpiry() >= before + 2 * HOUR);
+        Assert.assertEquals(2, refresher.size());
+        Assert.assertEquals(0, refresher.refreshDue());
+    }
+
+    @Test
+    public void testBatchSizeIsCapped() {
+        Recorder recorder = new Recorder();
+        TokenRefresher refresher = new TokenRefresher(KEY, recorder, HOUR,
+                HOUR, 1000, 3);
+        for (int i = 0; i < 5; i++) {
+            refresher.track(auth(System.currentTimeMillis() + 1000), 3 * HOUR);
+        }
+        Assert.assertEquals(3, refresher.refreshDue());
+        Assert.assertEquals(2, refresher.refreshDue());
+        Assert.assertEquals(0, refresher.refreshDue());
+    }
+
+    @Test
+    public void testCancelled() {
+        Recorder recorder = new Recorder();
+        TokenRefresher refresher = new TokenRefresher(KEY, recorder, HOUR, 0,
+                1000, 10);
+        refresher.track(auth(System.currentTimeMillis() + 1000), HOUR * 2)
+                .cancel();
+        Assert.assertEquals(0, refresher.refreshDue());
+        Assert.assertEquals(0, refresher.size());
+        Assert.assertTrue(recorder.tokens.isEmpty());
+    }
+
+    @Test
+    public void testBackgroundRefresh() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        TokenRefresher refresher = new TokenRefresher(KEY,
+                new TokenRefresher.Listener() {
+                    @Override
+                    public void onRefresh(TokenRefresher.Ticket ticket,
+                            WebAuthz auth, String token) {
+                        latch.countDown();
+                    }
+                }, HOUR, 0, 10, 10);
+        try {
+            refresher.start();
+            refresher.track(auth(System.currentTimeMillis() + 1000), 2 * HOUR);
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } finally {
+            refresher.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNeverExpiring() {
+        new TokenRefresher(KEY, new Recorder(), HOUR, 0, 1000, 10)
+                .track(auth(0));
+    }
+
+    @Test
+    public void testLifetimeMustOutlastRefreshAhead() {
+        TokenRefresher refresher = new TokenRefresher(KEY, new Recorder(),
+                HOUR, HOUR, 1000, 10);
+        WebAuthz auth = auth(System.currentTimeMillis() + 1000);
+        for (long lifetime : new long[] { 0, HOUR, 2 * HOUR }) {
+            try {
+                refresher.track(auth, lifetime);
+                Assert.fail("Lifetime " + lifetime + " should be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        Assert.assertEquals(0, refresher.size());
+        refresher.track(auth, 2 * HOUR + 1);
+        Assert.assertEquals(1, refresher.size());
+    }
+
+    private static WebAuthz unencodable(long expiry) {
+        StringBuilder basePath = new StringBuilder("/");
+        while (basePath.length() <= 0xffff) {
+            basePath.append("0123456789abcdef");
+        }
+        return new WebAuthzBuilder(Access.READ_ONLY, expiry).withBasePath(
+                basePath.toString()).build();
+    }
+
+    @Test
+    public void testBadTicketDoesNotStopBatch() {
+        Recorder recorder = new Recorder();
+        TokenRefresher refresher = new TokenRefresher(KEY, recorder, HOUR, 0,
+                1000, 10);
+        for (int i = 0; i < 5; i++) {
+            refresher.track(auth(System.currentTimeMillis() + 1000), 2 * HOUR);
+        }
+        // track() would refuse this one, so schedule it directly, as if it had
+        // only become unencodable after being tracked
+        TokenRefresher.Ticket bad = new TokenRefresher.Ticket(
+                unencodable(System.currentTimeMillis() + 1000), 2 * HOUR);
+        refresher.schedule(bad);
+        Assert.assertEquals(6, refresher.size());
+        Assert.assertEquals(5, refresher.refreshDue());
+        Assert.assertEquals(5, recorder.tokens.size());
+        Assert.assertTrue(bad.isCancelled());
+        Assert.assertEquals(1, refresher.getFailedCount());
+        Assert.assertEquals(5, refresher.size());
+    }
+
+    @Test
+    public void testUnencodableIsRejected() {
+        TokenRefresher refresher = new TokenRefresher(KEY, new Recorder(),
+                HOUR, 0, 1000, 10);
+        try {
+            refresher.track(unencodable(System.currentTimeMillis() + 1000),
+                    2 * HOUR);
+            Assert.fail("Unencodable webauthz should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Assert.assertEquals(0, refresher.size());
+    }
+
+    @Test
+    public void testLifetimeMustNotOverflow() {
+        TokenRefresher refresher = new TokenRefresher(KEY, new Recorder(),
+                HOUR, 0, 1000, 10);
+        WebAuthz auth = auth(System.currentTimeMillis() + 1000);
+        try {
+            refresher.track(auth, Long.MAX_VALUE);
+            Assert.fail("Lifetime " + Long.MAX_VALUE + " should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        refresher.track(auth, TokenRefresher.MAX_LIFETIME_MILLIS);
+        Assert.assertEquals(1, refresher.size());
+    }
+}
@@ -5,6 +5,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import junit.framework.Assert;
@@ -154,4 +155,40 @@ public class UtilTest {
                 (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
                 (byte) 0xFF, (byte) 0xFF, (byte) 0xFF);
     }
+
+    @Test
+    public void testWriteZeroOrLongToByteBufferMatchesStream()
+            throws IOException {
+        long[] values = { 0, 1, 255, 4886718345L, 549755813887L };
+        for (long value : values) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Util.writeZeroOrLong(value, new DataOutputStream(out), 5);
+            ByteBuffer buffer = ByteBuffer.allocate(5);
+            Util.writeZeroOrLong(value, buffer, 5);
+            Assert.assertEquals(Util.sizeOfZeroOrLong(value, 5),
+                    buffer.position());
+            byte[] actual = Arrays.copyOf(buffer.array(), buffer.position());
+            Assert.assertTrue(Arrays.equals(out.toByteArray(), actual));
+            buffer.flip();
+            Assert.assertEquals(value, Util.readZeroOrLong(buffer, 5));
+        }
+    }
+
+    @Test
+    public void testWriteStringToByteBufferMatchesWriteUTF()
+            throws IOException {
+        String[] values = { "", "/class/1/", "caf\u00e9", "\0",
+                "/a\ud800/", "\ud83d\ude00", "\u20ac" };
+        for (String value : values) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new DataOutputStream(out).writeUTF(value);
+            ByteBuffer buffer = ByteBuffer.allocate(64);
+            Util.writeString(value, buffer);
+            Assert.assertEquals(Util.sizeOfString(value), buffer.position());
+            byte[] actual = Arrays.copyOf(buffer.array(), buffer.position());
+            Assert.assertTrue(Arrays.equals(out.toByteArray(), actual));
+            buffer.flip();
+            Assert.assertEquals(value, Util.readString(buffer));
+        }
+    }
 }
@@ -2,6 +2,8 @@ package com.twitter.university.webauthz;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.Map;
 import java.security.Key;
 import java.util.Set;
 
@@ -77,4 +79,130 @@ public class WebAuthzTest {
     public void testInvalidKey() {
         WebAuthz.decode(AUTH.encode(KEY), WebAuthz.generateKey("abc 1234"));
     }
+
+    @Test
+    public void testToBytesFromBytesMinimal() {
+        WebAuthz auth = new WebAuthz(BASE_PATH, null, 0, Access.READ_ONLY, 0,
+                0, null);
+        Assert.assertEquals(auth, WebAuthz.fromBytes(auth.toBytes()));
+    }
+
+    @Test
+    public void testToBytesFromBytesMatchesDecode() {
+        WebAuthz auth = new WebAuthzBuilder(Access.READ_ONLY, 0)
+                .withBasePath("/a\ud800/").withDescription("\0\ud83d\ude00")
+                .withAdditionalPath("/a\ud800\udc00/", Access.WRITE_ONLY)
+                .build();
+        Assert.assertEquals(auth, WebAuthz.decode(auth.encode(KEY), KEY));
+        Assert.assertEquals(auth, WebAuthz.fromBytes(auth.toBytes()));
+    }
+
+    @Test
+    public void testToBytesFromBytes() {
+        Assert.assertEquals(AUTH, WebAuthz.fromBytes(AUTH.toBytes()));
+    }
+
+    @Test
+    public void testToBytesFromBytesWithByteBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256);
+        buffer.put((byte) 0xAB);
+        AUTH.toBytes(buffer);
+        AUTH.toBytes(buffer);
+        buffer.flip();
+        buffer.get();
+        Assert.assertEquals(AUTH, WebAuthz.fromBytes(buffer));
+        Assert.assertEquals(AUTH, WebAuthz.fromBytes(buffer));
+        Assert.assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testToBytesIsSmallerThanEncoded() {
+        Assert.assertTrue(AUTH.toBytes().length < AUTH.encode(KEY).length());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFromBytesTruncated() {
+        byte[] bytes = AUTH.toBytes();
+        WebAuthz.fromBytes(ByteBuffer.wrap(bytes, 0, bytes.length - 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFromBytesUnsupportedVersion() {
+        byte[] bytes = AUTH.toBytes();
+        bytes[0] = 0;
+        WebAuthz.fromBytes(bytes);
+    }
+
+    @Test
+    public void testDecodeWithInterner() {
+        StringInterner interner = new StringInterner();
+        String encoded = AUTH.encode(KEY);
+        WebAuthz first = WebAuthz.decode(encoded, KEY, interner);
+        WebAuthz second = WebAuthz.decode(AUTH.encode(KEY), KEY, interner);
+        Assert.assertEquals(AUTH, first);
+        Assert.assertEquals(AUTH, second);
+        Assert.assertSame(first.getBasePath(), second.getBasePath());
+        Assert.assertSame(first.getDescription(), second.getDescription());
+        Assert.assertSame(first.getUserDescription(),
+                second.getUserDescription());
+    }
+
+    private static WebAuthz multiPath() {
+        return new WebAuthzBuilder(Access.READ_ONLY, EXPIRY)
+                .withBasePath(BASE_PATH).witUserId(USER_ID)
+                .withAdditionalPath("/class/12345/uploads/", Access.WRITE_ONLY)
+                .withAdditionalPath("/class/67890/files/", Access.READ_WRITE)
+                .withAdditionalPath("/public/", Access.READ_ONLY)
+                .withAdditionalPath("/public/\ud83d\ude00/", Access.READ_WRITE)
+                .build();
+    }
+
+    @Test
+    public void testEncodeDecodeMultiPath() {
+        assertEncodeDecode(multiPath());
+    }
+
+    @Test
+    public void testDecodeMultiPathWithInterner() {
+        WebAuthz auth = multiPath();
+        Assert.assertEquals(auth, WebAuthz.decode(auth.encode(KEY), KEY,
+                new StringInterner()));
+    }
+
+    @Test
+    public void testSinglePathEncodesAsVersion2() {
+        Assert.assertEquals(2, Util.urlSafeBase64Decode(AUTH.encode(KEY))[0]);
+        Assert.assertEquals(3,
+                Util.urlSafeBase64Decode(multiPath().encode(KEY))[0]);
+    }
+
+    @Test
+    public void testToBytesFromBytesMultiPath() {
+        WebAuthz auth = multiPath();
+        byte[] bytes = auth.toBytes();
+        Assert.assertEquals(auth, WebAuthz.fromBytes(bytes));
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+        auth.toBytes(buffer);
+        Assert.assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testGetAccessForPath() {
+        Assert.assertEquals(ACCESS, AUTH.getAccess(BASE_PATH + "a.txt"));
+        Assert.assertEquals(Access.NONE, AUTH.getAccess("/other/"));
+        WebAuthz auth = multiPath();
+        Assert.assertEquals(Access.READ_ONLY,
+                auth.getAccess(BASE_PATH + "a.txt"));
+        Assert.assertEquals(Access.WRITE_ONLY,
+                auth.getAccess("/class/12345/uploads/a.txt"));
+        Assert.assertEquals(Access.READ_WRITE,
+                auth.getAccess("/class/67890/files/a.txt"));
+        Assert.assertEquals(Access.NONE, auth.getAccess("/class/1/"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testAdditionalPathsAreUnmodifiable() {
+        Map<String, Set<Access>> paths = multiPath().getAdditionalPaths();
+        paths.put("/x/", Access.READ_ONLY);
+    }
 }